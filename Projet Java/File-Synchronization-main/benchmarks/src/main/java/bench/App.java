@@ -0,0 +1,226 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Entry points of the application used by the benchmarks.<br/>
+ * The classes of the application live in the default package, which cannot be imported from a named package,
+ * and JMH refuses benchmarks declared in the default package. The methods are therefore looked up once as method handles;
+ * since the handles are constants, the JIT compiler inlines them and the benchmarks measure the application code alone.
+ */
+final class App {
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+	private static final Class<?> DOC = type("Doc");
+	private static final Class<?> IGNORE_MATCHER = type("IgnoreMatcher");
+	private static final Class<?> TREE_WALKER = type("TreeWalker");
+	private static final Class<?> MERGE_SCAN = type("MergeScan");
+	private static final Class<?> THROTTLE = type("Throttle");
+
+	private static final MethodHandle NEW_DOC = constructor(DOC, String.class, long.class, long.class);
+	private static final MethodHandle NEW_MATCHER = constructor(IGNORE_MATCHER, List.class);
+	private static final MethodHandle NEW_WALKER = constructor(TREE_WALKER, int.class);
+	private static final MethodHandle NEW_MERGE_SCAN = constructor(MERGE_SCAN, Iterator.class, Iterator.class, IGNORE_MATCHER);
+	private static final MethodHandle PATH_ORDER = staticGetter(DOC, "PATH_ORDER", Comparator.class);
+
+	private static final MethodHandle WALK = method(TREE_WALKER, "walk", List.class, String.class, IGNORE_MATCHER);
+	private static final MethodHandle ITERATE = method(TREE_WALKER, "iterate", Iterator.class, String.class, IGNORE_MATCHER);
+	private static final MethodHandle CLOSE_WALKER = method(TREE_WALKER, "close", void.class);
+	private static final MethodHandle NEXT_CHANGE = method(MERGE_SCAN, "next", type("MergeScan$Change"));
+	private static final MethodHandle GET_CHANGES = method(MERGE_SCAN, "getChanges", long.class);
+	private static final MethodHandle IS_IGNORED = method(IGNORE_MATCHER, "isIgnored", boolean.class, String.class, boolean.class);
+	private static final MethodHandle SAVE_TO = method(DOC, "saveTo", boolean.class, String.class, String.class);
+	private static final MethodHandle COPY = staticMethod(type("FileCopier"), "copy", long.class, Path.class, Path.class, long.class);
+	private static final MethodHandle GET_THROTTLE = staticMethod(THROTTLE, "get", THROTTLE);
+	private static final MethodHandle SET_BYTES = method(THROTTLE, "setBytesPerSecond", void.class, long.class);
+	private static final MethodHandle SET_OPS = method(THROTTLE, "setOpsPerSecond", void.class, long.class);
+	private static final MethodHandle OPERATIONS = method(THROTTLE, "operations", void.class, int.class);
+
+	private App() {
+	}
+
+	static Object doc(String name, long date, long size) {
+		try {
+			return NEW_DOC.invoke(name, date, size);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static Object matcher(List<String> rules) {
+		try {
+			return NEW_MATCHER.invoke(rules);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static Object walker(int threads) {
+		try {
+			return NEW_WALKER.invoke(threads);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static Object mergeScan(Iterator<?> source, Iterator<?> target, Object matcher) {
+		try {
+			return NEW_MERGE_SCAN.invoke(source, target, matcher);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static Object next(Object scan) {
+		try {
+			return NEXT_CHANGE.invoke(scan);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static long changes(Object scan) {
+		try {
+			return (long) GET_CHANGES.invoke(scan);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static Comparator<String> pathOrder() {
+		try {
+			return (Comparator<String>) PATH_ORDER.invoke();
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static List<?> walk(Object walker, String root, Object matcher) {
+		try {
+			return (List<?>) WALK.invoke(walker, root, matcher);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static Iterator<?> iterate(Object walker, String root, Object matcher) {
+		try {
+			return (Iterator<?>) ITERATE.invoke(walker, root, matcher);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static void close(Object walker) {
+		try {
+			CLOSE_WALKER.invoke(walker);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static boolean isIgnored(Object matcher, String path, boolean directory) {
+		try {
+			return (boolean) IS_IGNORED.invoke(matcher, path, directory);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static boolean saveTo(Object doc, String from, String to) {
+		try {
+			return (boolean) SAVE_TO.invoke(doc, from, to);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static long copy(Path source, Path target, long date) {
+		try {
+			return (long) COPY.invoke(source, target, date);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static Object throttle() {
+		try {
+			return GET_THROTTLE.invoke();
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static void limit(Object throttle, long bytesPerSecond, long opsPerSecond) {
+		try {
+			SET_BYTES.invoke(throttle, bytesPerSecond);
+			SET_OPS.invoke(throttle, opsPerSecond);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	static void operations(Object throttle, int count) {
+		try {
+			OPERATIONS.invoke(throttle, count);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	private static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Application class not found: " + name, e);
+		}
+	}
+
+	private static MethodHandle constructor(Class<?> type, Class<?>... parameters) {
+		try {
+			return LOOKUP.findConstructor(type, MethodType.methodType(void.class, parameters));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MethodHandle method(Class<?> type, String name, Class<?> result, Class<?>... parameters) {
+		try {
+			return LOOKUP.findVirtual(type, name, MethodType.methodType(result, parameters));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MethodHandle staticGetter(Class<?> type, String name, Class<?> result) {
+		try {
+			return LOOKUP.findStaticGetter(type, name, result);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MethodHandle staticMethod(Class<?> type, String name, Class<?> result, Class<?>... parameters) {
+		try {
+			return LOOKUP.findStatic(type, name, MethodType.methodType(result, parameters));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable e) {
+		if (e instanceof RuntimeException)
+			return (RuntimeException) e;
+		if (e instanceof Error)
+			throw (Error) e;
+		return new IllegalStateException(e);
+	}
+}
@@ -0,0 +1,38 @@
+package bench;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, and saves the results as JSON so two runs can be compared.<br/>
+ * Every JMH option can be given on the command line, for example:
+ * <pre>java -jar benchmarks/target/benchmarks.jar Scan -p files=10000 -rff before.json</pre>
+ * Each benchmark reports its operations per second (Throughput), its latency percentiles including p99 (SampleTime),
+ * and its allocation rate (gc.alloc.rate and gc.alloc.rate.norm).
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions command = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(command).addProfiler(GCProfiler.class);
+
+		if (!command.getResult().hasValue()) {
+			String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+			options.resultFormat(ResultFormatType.JSON).result("jmh-result-" + stamp + ".json");
+		} else if (!command.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+
+		new Runner(options.build()).run();
+	}
+}
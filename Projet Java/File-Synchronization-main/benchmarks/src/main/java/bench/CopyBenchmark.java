@@ -0,0 +1,78 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copy of one file to the target directory, through FileCopier.copy and through Doc.saveTo.<br/>
+ * The throughput in bytes per second is the number of operations per second multiplied by the size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+	@Param({ "4096", "1048576", "67108864" })
+	public int size;
+
+	private Path dir;
+	private String from;
+	private String to;
+	private Object doc;
+	private long date;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("filesync-copy");
+		Files.createDirectories(dir.resolve("source"));
+		Files.createDirectories(dir.resolve("target"));
+		from = dir.resolve("source") + "/";
+		to = dir.resolve("target") + "/";
+
+		// Random content, so the file system cannot store it as holes
+		byte[] content = new byte[size];
+		new SplittableRandom(size).nextBytes(content);
+		Files.write(Path.of(from + "file.bin"), content);
+
+		date = Files.getLastModifiedTime(Path.of(from + "file.bin")).toMillis();
+		doc = App.doc("file.bin", date, size);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(Path.of(from + "file.bin"));
+		Files.deleteIfExists(Path.of(to + "file.bin"));
+		Files.deleteIfExists(Path.of(from));
+		Files.deleteIfExists(Path.of(to));
+		Files.deleteIfExists(dir);
+	}
+
+	@Benchmark
+	public long fileCopier() {
+		return App.copy(Path.of(from + "file.bin"), Path.of(to + "file.bin"), date);
+	}
+
+	@Benchmark
+	public boolean saveTo() {
+		return App.saveTo(doc, from, to);
+	}
+}
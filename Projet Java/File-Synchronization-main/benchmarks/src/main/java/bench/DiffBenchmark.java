@@ -0,0 +1,86 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Comparison of two snapshots of a tree as two sorted streams (MergeScan), with 1% of the files added, modified and deleted.<br/>
+ * The streams are read from lists, so the benchmark measures the merge-join alone, without walking the directories.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DiffBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int files;
+
+	@Param({ "flat", "deep" })
+	public String layout;
+
+	private List<Object> source;
+	private List<Object> target;
+	private Object matcher;
+
+	@Setup
+	public void setup() {
+		SplittableRandom random = new SplittableRandom(files);
+		List<String> names = new ArrayList<>(Trees.names(files, layout.equals("deep")));
+		names.sort(App.pathOrder());
+		source = new ArrayList<>(files);
+		target = new ArrayList<>(files);
+
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			long size = Trees.size(random);
+			long date = 1_600_000_000_000L + i;
+
+			switch (i % 100) {
+			case 0:
+				// Only in the source
+				source.add(App.doc(name, date, size));
+				break;
+			case 1:
+				// Only in the target
+				target.add(App.doc(name, date, size));
+				break;
+			case 2:
+				// Modified
+				source.add(App.doc(name, date + 1000, size + 1));
+				target.add(App.doc(name, date, size));
+				break;
+			default:
+				source.add(App.doc(name, date, size));
+				target.add(App.doc(name, date, size));
+			}
+		}
+
+		matcher = App.matcher(List.of(".DS_Store", "*.tmp"));
+	}
+
+	@Benchmark
+	public long diff() {
+		Object scan = App.mergeScan(source.iterator(), target.iterator(), matcher);
+		while (App.next(scan) != null) {
+			// Every path is compared, the result is the number of differences
+		}
+		return App.changes(scan);
+	}
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Check of one path against the ignore list (IgnoreMatcher.isIgnored), for lists of 1 to 500 rules.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IgnoreBenchmark {
+
+	@Param({ "1", "10", "100", "500" })
+	public int rules;
+
+	private String[] paths;
+	private Object matcher;
+	private int next;
+
+	@Setup
+	public void setup() {
+		paths = Trees.names(4096, true).toArray(new String[0]);
+
+		// A realistic mix: names, extensions, anchored paths, directory rules and a few wildcards
+		List<String> list = new ArrayList<>(rules);
+		list.add(".DS_Store");
+		for (int i = 1; i < rules; i++) {
+			switch (i % 5) {
+			case 0:
+				list.add("*.ext" + i);
+				break;
+			case 1:
+				list.add("name" + i + ".txt");
+				break;
+			case 2:
+				list.add("d" + i % 4 + "/d" + i + "/");
+				break;
+			case 3:
+				list.add("build" + i + "/");
+				break;
+			default:
+				list.add("file" + i + "?.t*");
+			}
+		}
+		matcher = App.matcher(list);
+	}
+
+	@Benchmark
+	public boolean isIgnored() {
+		String path = paths[next++ & (paths.length - 1)];
+		return App.isIgnored(matcher, path, false);
+	}
+}
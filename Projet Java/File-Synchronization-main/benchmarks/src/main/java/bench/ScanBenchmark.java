@@ -0,0 +1,73 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Full scan of a directory tree: listed at once (TreeWalker.walk), or walked in sorted order one directory at a time,
+ * as done by every synchronization of a job (TreeWalker.iterate).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int files;
+
+	@Param({ "flat", "deep" })
+	public String layout;
+
+	@Param({ "4" })
+	public int threads;
+
+	private String root;
+	private Object walker;
+	private Object matcher;
+
+	@Setup
+	public void setup() throws IOException {
+		Path tree = Trees.tree(files, layout.equals("deep"));
+		root = tree.toString() + "/";
+		walker = App.walker(threads);
+		matcher = App.matcher(List.of(".DS_Store", "*.tmp"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		App.close(walker);
+	}
+
+	@Benchmark
+	public List<?> scan() {
+		return App.walk(walker, root, matcher);
+	}
+
+	@Benchmark
+	public void iterate(Blackhole blackhole) {
+		Iterator<?> docs = App.iterate(walker, root, matcher);
+		while (docs.hasNext()) {
+			blackhole.consume(docs.next());
+		}
+	}
+}
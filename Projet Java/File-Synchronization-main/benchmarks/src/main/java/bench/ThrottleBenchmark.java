@@ -0,0 +1,102 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copy of one file through FileCopier.copy, limited by the Throttle as the transfers of a job are.<br/>
+ * The "bytes" and "files" counters give the rate reached, to compare with the limits: the tighter limit should be met
+ * for small and large files alike. With both limits at 0, the benchmark measures the cost of a throttle left unset,
+ * to compare with CopyBenchmark. Run with -t 4 to check that the limits hold when several threads share them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ThrottleBenchmark {
+
+	@Param({ "4096", "1048576", "67108864" })
+	public int size;
+
+	@Param({ "0", "33554432" })
+	public long bytesPerSecond;
+
+	@Param({ "0", "500" })
+	public long opsPerSecond;
+
+	/**
+	 * Bytes and files copied, reported per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Rate {
+
+		public long bytes;
+		public long files;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+			files = 0;
+		}
+	}
+
+	private Path dir;
+	private Path source;
+	private Path target;
+	private long date;
+	private Object throttle;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("filesync-throttle");
+		source = dir.resolve("file.bin");
+		target = dir.resolve("copy.bin");
+
+		// Random content, so the file system cannot store it as holes
+		byte[] content = new byte[size];
+		new SplittableRandom(size).nextBytes(content);
+		Files.write(source, content);
+		date = Files.getLastModifiedTime(source).toMillis();
+
+		throttle = App.throttle();
+		App.limit(throttle, bytesPerSecond, opsPerSecond);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		App.limit(throttle, 0, 0);
+		Files.deleteIfExists(source);
+		Files.deleteIfExists(target);
+		Files.deleteIfExists(dir);
+	}
+
+	@Benchmark
+	public long copy(Rate rate) {
+		App.operations(throttle, 1);
+		long bytes = App.copy(source, target, date);
+		rate.bytes += bytes;
+		rate.files++;
+		return bytes;
+	}
+}
@@ -0,0 +1,116 @@
+package bench;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Generates the synthetic directory trees and file lists used by the benchmarks.<br/>
+ * Trees are created once under the temporary directory and reused by the next runs, since creating a million files takes minutes.
+ * Files are sparse, so their sizes are realistic without filling the disk.
+ */
+final class Trees {
+
+	// Root of the generated trees
+	static final Path ROOT = Path.of(System.getProperty("java.io.tmpdir"), "filesync-bench");
+
+	// Files per directory in a flat tree, and subdirectories per directory in a deep tree
+	private static final int FLAT_FILES = 1000;
+	private static final int DEEP_FANOUT = 4;
+	private static final int DEEP_FILES = 16;
+
+	private Trees() {
+	}
+
+	/**
+	 * Returns a directory holding the given number of files, creating it if needed.
+	 *
+	 * @param files the number of files
+	 * @param deep true for a deep tree of small directories, false for a few large directories
+	 * @return the root of the tree
+	 * @throws IOException if the tree cannot be created
+	 */
+	static Path tree(int files, boolean deep) throws IOException {
+		Path root = ROOT.resolve((deep ? "deep-" : "flat-") + files);
+		Path done = root.resolve(".complete");
+		if (Files.exists(done))
+			return root;
+
+		SplittableRandom random = new SplittableRandom(files);
+		for (String name : names(files, deep)) {
+			Path file = root.resolve(name);
+			Files.createDirectories(file.getParent());
+			try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+				out.setLength(size(random));
+			}
+		}
+
+		Files.createFile(done);
+		return root;
+	}
+
+	/**
+	 * Returns the relative paths of the files of a tree.
+	 *
+	 * @param files the number of files
+	 * @param deep true for a deep tree of small directories, false for a few large directories
+	 * @return the relative paths, with '/' separators
+	 */
+	static List<String> names(int files, boolean deep) {
+		List<String> names = new ArrayList<>(files);
+		for (int i = 0; i < files; i++) {
+			if (!deep) {
+				names.add("dir" + (i / FLAT_FILES) + "/file" + i + extension(i));
+				continue;
+			}
+
+			// Spread the directories of each level over the fanout, 16 files per leaf
+			StringBuilder name = new StringBuilder();
+			for (int dir = i / DEEP_FILES; ; dir /= DEEP_FANOUT) {
+				name.insert(0, "d" + dir % DEEP_FANOUT + "/");
+				if (dir < DEEP_FANOUT)
+					break;
+			}
+			names.add(name.append("file").append(i).append(extension(i)).toString());
+		}
+		return names;
+	}
+
+	/**
+	 * Returns a file size drawn from a mix of small, medium and large files.
+	 *
+	 * @param random the source of randomness
+	 * @return the size in bytes
+	 */
+	static long size(SplittableRandom random) {
+		int kind = random.nextInt(100);
+		if (kind < 80)
+			return random.nextInt(16 * 1024);
+		if (kind < 98)
+			return 16 * 1024 + random.nextInt(1024 * 1024);
+		return 1024 * 1024 + random.nextInt(64 * 1024 * 1024);
+	}
+
+	/**
+	 * Returns the extension of the given file, so ignore rules on extensions match a part of the files.
+	 *
+	 * @param i the index of the file
+	 * @return the extension
+	 */
+	private static String extension(int i) {
+		switch (i % 8) {
+		case 0:
+			return ".html";
+		case 1:
+			return ".tmp";
+		case 2:
+			return ".jpg";
+		default:
+			return ".txt";
+		}
+	}
+}
@@ -0,0 +1,226 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * Log handler writing the records to the log file and to the console from a background thread.<br/>
+ * {@link #publish(LogRecord)} only puts the record in a bounded ring buffer, so a synchronization thread never waits
+ * for the disk or the console. The background thread takes the records by batches, formats them without locks
+ * nor <code>String.format</code>, and flushes the file once per batch.
+ * When the buffer is full, records are dropped rather than blocking the caller, and the number of dropped records is logged.<br/>
+ * The handler is configured in logging.properties:
+ * <ul>
+ * <li><code>AsyncLogHandler.file</code>: the log file, "latest.log" by default;</li>
+ * <li><code>AsyncLogHandler.capacity</code>: the number of records the buffer holds, 65536 by default;</li>
+ * <li><code>AsyncLogHandler.level</code>: the lowest level written to the file;</li>
+ * <li><code>AsyncLogHandler.console.level</code>: the lowest level written to the console, INFO by default.</li>
+ * </ul>
+ */
+public class AsyncLogHandler extends Handler {
+
+	// Most records written by one batch
+	private static final int BATCH = 1024;
+
+	// Date prefix of the records
+	private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+	// Records waiting to be written
+	private final BlockingQueue<LogRecord> buffer;
+
+	// Records dropped because the buffer was full
+	private final LongAdder dropped = new LongAdder();
+
+	// Log file, and console
+	private final Writer file;
+	private final PrintStream console;
+	private final Level consoleLevel;
+
+	// Thread writing the records
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	// Date prefix of the last second formatted, only used by the writer thread
+	private long prefixSecond = Long.MIN_VALUE;
+	private String prefix;
+
+	/**
+	 * Creates a handler configured by logging.properties and starts its writer thread.
+	 */
+	public AsyncLogHandler() {
+		LogManager manager = LogManager.getLogManager();
+		String name = getClass().getName();
+
+		String path = property(manager, name + ".file", "latest.log");
+		int capacity = Integer.parseInt(property(manager, name + ".capacity", "65536"));
+		setLevel(Level.parse(property(manager, name + ".level", "ALL")));
+		this.consoleLevel = Level.parse(property(manager, name + ".console.level", "INFO"));
+
+		Writer out = null;
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8), 64 * 1024);
+		} catch (IOException e) {
+			reportError("Unable to open log file '" + path + "'", e, ErrorManager.OPEN_FAILURE);
+		}
+		this.file = out;
+		this.console = System.err;
+		this.buffer = new ArrayBlockingQueue<>(Math.max(BATCH, capacity));
+
+		this.writer = new Thread(this::drain, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Returns the value of a property of logging.properties.
+	 *
+	 * @param manager the log manager
+	 * @param key the name of the property
+	 * @param defaultValue the value used if the property is not set
+	 * @return the value
+	 */
+	private static String property(LogManager manager, String key, String defaultValue) {
+		String value = manager.getProperty(key);
+		return value == null || value.isBlank() ? defaultValue : value.trim();
+	}
+
+	/**
+	 * Queues a record, without waiting. If the buffer is full, the record is dropped.
+	 *
+	 * @param record the record to write
+	 */
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record))
+			return;
+		if (!buffer.offer(record))
+			dropped.increment();
+	}
+
+	/**
+	 * Writes the queued records until the handler is closed.
+	 */
+	private void drain() {
+		List<LogRecord> batch = new ArrayList<>(BATCH);
+		StringBuilder text = new StringBuilder(64 * 1024);
+		StringBuilder shown = new StringBuilder(4 * 1024);
+
+		while (!closed || !buffer.isEmpty()) {
+			try {
+				LogRecord first = buffer.poll(200, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+				buffer.drainTo(batch, BATCH - 1);
+			} catch (InterruptedException e) {
+				// Closing, write what is left
+			}
+
+			write(batch, text, shown);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Formats a batch of records and writes it to the file and the console.
+	 *
+	 * @param batch the records
+	 * @param text the buffer receiving the text of the file
+	 * @param shown the buffer receiving the text of the console
+	 */
+	private void write(List<LogRecord> batch, StringBuilder text, StringBuilder shown) {
+		text.setLength(0);
+		shown.setLength(0);
+
+		long lost = dropped.sumThenReset();
+		if (lost > 0)
+			format(text, System.currentTimeMillis(), Level.WARNING, lost + " log records dropped, the log buffer was full");
+
+		for (LogRecord record : batch) {
+			int start = text.length();
+			format(text, record.getMillis(), record.getLevel(), record.getMessage());
+			if (record.getLevel().intValue() >= consoleLevel.intValue())
+				shown.append(text, start, text.length());
+		}
+
+		if (file != null) {
+			try {
+				file.append(text);
+				file.flush();
+			} catch (IOException e) {
+				reportError("Unable to write the log file", e, ErrorManager.WRITE_FAILURE);
+			}
+		}
+		if (shown.length() > 0)
+			console.print(shown);
+	}
+
+	/**
+	 * Formats a record as "[date time] [LEVEL]: message".
+	 *
+	 * @param out the buffer receiving the line
+	 * @param millis the time of the record
+	 * @param level the level of the record
+	 * @param message the message of the record
+	 */
+	private void format(StringBuilder out, long millis, Level level, String message) {
+		long second = millis / 1000;
+		if (second != prefixSecond) {
+			prefixSecond = second;
+			prefix = "[" + DATE.format(Instant.ofEpochMilli(millis)) + "] [";
+		}
+		out.append(prefix).append(level.getName()).append("]: ").append(message).append(System.lineSeparator());
+	}
+
+	/**
+	 * Waits for the queued records to be written.
+	 */
+	@Override
+	public void flush() {
+		long deadline = System.currentTimeMillis() + 1000;
+		while (!buffer.isEmpty() && writer.isAlive() && System.currentTimeMillis() < deadline) {
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Writes the queued records, then closes the log file.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+
+		try {
+			writer.join(2000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				reportError("Unable to close the log file", e, ErrorManager.CLOSE_FAILURE);
+			}
+		}
+	}
+}
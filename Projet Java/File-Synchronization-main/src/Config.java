@@ -61,6 +61,44 @@ public class Config {
         return Integer.parseInt(getString(key));
     }
 
+    /**
+     * Gets the integer value associated with the specified key, or a default value if it is missing or invalid.
+     *
+     * @param key the key of the property
+     * @param defaultValue the value returned if the key is not found or cannot be parsed
+     * @return the integer value associated with the key, or the default value
+     */
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key);
+        if (value == null || value.isBlank())
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            History.getLogger().log(Level.WARNING, "Invalid value for '" + key + "': " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets the long value associated with the specified key, or a default value if it is missing or invalid.
+     *
+     * @param key the key of the property
+     * @param defaultValue the value returned if the key is not found or cannot be parsed
+     * @return the long value associated with the key, or the default value
+     */
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key);
+        if (value == null || value.isBlank())
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            History.getLogger().log(Level.WARNING, "Invalid value for '" + key + "': " + value);
+            return defaultValue;
+        }
+    }
+
     /**
      * Gets the double value associated with the specified key.
      *
@@ -72,6 +110,25 @@ public class Config {
         return Double.parseDouble(getString(key));
     }
 
+    /**
+     * Gets the double value associated with the specified key, or a default value if it is missing or invalid.
+     *
+     * @param key the key of the property
+     * @param defaultValue the value returned if the key is not found or cannot be parsed
+     * @return the double value associated with the key, or the default value
+     */
+    public double getDouble(String key, double defaultValue) {
+        String value = getString(key);
+        if (value == null || value.isBlank())
+            return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            History.getLogger().log(Level.WARNING, "Invalid value for '" + key + "': " + value);
+            return defaultValue;
+        }
+    }
+
     /**
      * Gets the boolean value associated with the specified key.
      *
@@ -83,6 +140,20 @@ public class Config {
         return Boolean.parseBoolean(getString(key));
     }
 
+    /**
+     * Gets the boolean value associated with the specified key, or a default value if it is missing.
+     *
+     * @param key the key of the property
+     * @param defaultValue the value returned if the key is not found
+     * @return the boolean value associated with the key, or the default value
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key);
+        if (value == null || value.isBlank())
+            return defaultValue;
+        return Boolean.parseBoolean(value.trim());
+    }
+
     /**
      * Sets the string value associated with the specified key and saves the changes to the configuration file.
      *
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Holds the paths reported by a {@link Watcher} until they are ready to be replicated.<br/>
+ * Events on the same path are merged into one pending change, kept in the order of its first event.
+ * A file is only released once its size and date have not changed for a quiet period, so a file being written
+ * is copied once when it is complete instead of at every event. A file whose last modification is older than
+ * the quiet period is released at once, as are deletions and directories.
+ * A deleted path that was never replicated, as told by the index of the job, is dropped since there is nothing to delete.
+ * Whether the first event created the path does not matter, since a file saved over an existing one is reported as created.
+ */
+public class Debouncer {
+
+	/**
+	 * Pending change of a path.
+	 */
+	private static class Change {
+
+		// Size and date of the file when it was last checked, size -2 before the first check
+		long size = -2;
+		long date;
+
+		// Time at which the size or date was last seen changing, or 0
+		long changedAt = 0;
+	}
+
+	// Time a file must stay unchanged before it is released, in milliseconds
+	private final long quietPeriod;
+
+	// Tells whether a path was replicated, or is being replicated
+	private final Predicate<Path> replicated;
+
+	// Pending changes, in the order of their first event
+	private final Map<Path, Change> pending = new LinkedHashMap<>();
+
+	/**
+	 * Creates a debouncer with the given quiet period.
+	 *
+	 * @param quietPeriod the time a file must stay unchanged before it is released, in milliseconds, 0 to release files at once
+	 * @param replicated tells whether a path is recorded in the index of the job or being replicated,
+	 *        a deleted path that is neither is dropped
+	 */
+	public Debouncer(long quietPeriod, Predicate<Path> replicated) {
+		this.quietPeriod = Math.max(0, quietPeriod);
+		this.replicated = replicated;
+	}
+
+	/**
+	 * Checks whether a file modified at the given date is settled.<br/>
+	 * A date in the future, as found on shares whose clock is ahead, is considered settled since its age is unknown.
+	 *
+	 * @param date the last modification date of the file
+	 * @param quietPeriod the quiet period, in milliseconds
+	 * @return true if the file was not modified during the quiet period, false otherwise
+	 */
+	public static boolean isSettled(long date, long quietPeriod) {
+		long age = System.currentTimeMillis() - date;
+		return quietPeriod <= 0 || age >= quietPeriod || age < 0;
+	}
+
+	/**
+	 * Records an event on a path, merged with the pending change of the path if there is one.
+	 *
+	 * @param path the path
+	 */
+	public void add(Path path) {
+		pending.computeIfAbsent(path, p -> new Change());
+	}
+
+	/**
+	 * Removes and returns the pending paths ready to be replicated, up to the given number.
+	 *
+	 * @param max the maximum number of paths
+	 * @return the paths, in the order of their first event
+	 */
+	public List<Path> ready(int max) {
+		List<Path> ready = new ArrayList<>();
+		long now = System.currentTimeMillis();
+
+		for (Iterator<Map.Entry<Path, Change>> it = pending.entrySet().iterator(); it.hasNext() && ready.size() < max;) {
+			Map.Entry<Path, Change> entry = it.next();
+			Change change = entry.getValue();
+
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(entry.getKey(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				// Deleted: nothing to do if it was never replicated
+				it.remove();
+				if (replicated.test(entry.getKey()))
+					ready.add(entry.getKey());
+				continue;
+			}
+
+			if (attrs.isDirectory() || quietPeriod == 0) {
+				it.remove();
+				ready.add(entry.getKey());
+				continue;
+			}
+
+			long size = attrs.size();
+			long date = attrs.lastModifiedTime().toMillis();
+			if (change.size != size || change.date != date) {
+				if (change.size != -2)
+					change.changedAt = now;
+				change.size = size;
+				change.date = date;
+			}
+
+			// Stable since the later of its last modification, a date in the future counting as now, and its last change seen here
+			long stableSince = Math.max(change.changedAt, Math.min(date, now));
+			if (now - stableSince >= quietPeriod) {
+				it.remove();
+				ready.add(entry.getKey());
+			}
+		}
+		return ready;
+	}
+
+	/**
+	 * Returns the number of pending paths.
+	 *
+	 * @return the number of paths
+	 */
+	public int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Drops every pending path.
+	 */
+	public void clear() {
+		pending.clear();
+	}
+}
@@ -0,0 +1,400 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Updates a large target file in place by writing only the parts that differ from the source file.<br/>
+ * The target is split into fixed blocks, each one described by a rolling weak checksum and a strong MD5 hash
+ * (the rsync algorithm). The source is then scanned with the rolling checksum to find the blocks it shares with the target:
+ * a block already at the right offset is kept as is, a block found further in the target is moved,
+ * and everything else is written from the source.<br/>
+ * A block is only reused if it is located at or after the current write position, so every block is read
+ * before it can be overwritten. Unlike {@link FileCopier}, the update is not atomic: the date of the target is only
+ * set at the end, so an interrupted update is done again at the next synchronization.
+ */
+public final class DeltaCopier {
+
+	// Bounds of the block size, which grows with the size of the file
+	private static final int MIN_BLOCK_SIZE = 16 * 1024;
+	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+	// Bytes reused from the target and bytes written since the application started
+	private static final LongAdder bytesSaved = new LongAdder();
+	private static final LongAdder bytesWritten = new LongAdder();
+
+	/**
+	 * This class only provides static methods.
+	 */
+	private DeltaCopier() {
+	}
+
+	/**
+	 * Returns the block size used for a file of the given size.
+	 *
+	 * @param size the size of the target file in bytes
+	 * @return the block size in bytes
+	 */
+	static int blockSize(long size) {
+		long block = Long.highestOneBit(Math.max(1, size >> 16));
+		return (int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, block));
+	}
+
+	/**
+	 * Checks whether a delta update is worth it for the given files.
+	 *
+	 * @param source the source file
+	 * @param target the target file
+	 * @param threshold the minimum size of the source file in bytes, or 0 to disable delta updates
+	 * @return true if the target exists and both files are large enough, false otherwise
+	 */
+	public static boolean accepts(Path source, Path target, long threshold) {
+		if (threshold <= 0)
+			return false;
+		try {
+			return Files.isRegularFile(target) && Files.size(source) >= threshold
+					&& Files.size(target) >= blockSize(Files.size(target));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Updates the target file so that it has the content of the source file, and sets its last modification date.
+	 *
+	 * @param source the file to copy
+	 * @param target the existing file to update
+	 * @param date the last modification date of the copy in milliseconds since the epoch
+	 * @return the number of bytes written to the target
+	 * @throws IOException if a file cannot be read or written
+	 */
+	public static long copy(Path source, Path target, long date) throws IOException {
+		long written;
+		long saved;
+
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			int block = blockSize(out.size());
+			Signature signature = new Signature(out, block);
+			Patch patch = new Patch(in, out, signature);
+			patch.run();
+			out.truncate(in.size());
+			written = patch.written;
+			saved = patch.saved;
+		}
+
+		Files.setLastModifiedTime(target, FileTime.fromMillis(date));
+
+		bytesWritten.add(written);
+		bytesSaved.add(saved);
+		History.getLogger().log(Level.FINE, "Delta update of '" + target + "': " + written + " bytes written, " + saved + " bytes reused");
+		return written;
+	}
+
+	/**
+	 * Returns the number of bytes reused from the targets since the application started.
+	 *
+	 * @return the number of bytes that did not need to be written
+	 */
+	public static long getBytesSaved() {
+		return bytesSaved.sum();
+	}
+
+	/**
+	 * Returns the number of bytes written by delta updates since the application started.
+	 *
+	 * @return the number of bytes written
+	 */
+	public static long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	/**
+	 * Returns a new MD5 digest.
+	 *
+	 * @return the digest
+	 */
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+
+	/**
+	 * Rolling checksum of a window of bytes, as defined by rsync.
+	 */
+	private static final class Checksum {
+
+		private int a;
+		private int b;
+		private final int length;
+
+		/**
+		 * Computes the checksum of the given window.
+		 *
+		 * @param data the buffer holding the window
+		 * @param offset the start of the window
+		 * @param length the length of the window
+		 */
+		Checksum(byte[] data, int offset, int length) {
+			this.length = length;
+			for (int i = 0; i < length; i++) {
+				int x = data[offset + i] & 0xFF;
+				a += x;
+				b += (length - i) * x;
+			}
+			a &= 0xFFFF;
+			b &= 0xFFFF;
+		}
+
+		/**
+		 * Slides the window by one byte.
+		 *
+		 * @param out the byte leaving the window
+		 * @param in the byte entering the window
+		 */
+		void roll(byte out, byte in) {
+			int o = out & 0xFF;
+			a = (a - o + (in & 0xFF)) & 0xFFFF;
+			b = (b - length * o + a) & 0xFFFF;
+		}
+
+		/**
+		 * Returns the checksum value.
+		 *
+		 * @return the weak checksum
+		 */
+		int value() {
+			return a | (b << 16);
+		}
+	}
+
+	/**
+	 * Checksums of every full block of the target file.
+	 */
+	private static final class Signature {
+
+		// Size of the blocks
+		final int block;
+
+		// Blocks by weak checksum and strong hash of each block
+		final Map<Integer, List<Integer>> weak = new HashMap<>();
+		final byte[][] strong;
+
+		/**
+		 * Reads the target file and computes the checksums of its blocks.
+		 *
+		 * @param channel the target file
+		 * @param block the size of the blocks
+		 * @throws IOException if the file cannot be read
+		 */
+		Signature(FileChannel channel, int block) throws IOException {
+			this.block = block;
+			int count = (int) (channel.size() / block);
+			this.strong = new byte[count][];
+
+			MessageDigest md5 = md5();
+			ByteBuffer buffer = ByteBuffer.allocate(block);
+			for (int i = 0; i < count; i++) {
+				buffer.clear();
+				long position = (long) i * block;
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0)
+						throw new IOException("Target file truncated while reading");
+				}
+				weak.computeIfAbsent(new Checksum(buffer.array(), 0, block).value(), k -> new ArrayList<>()).add(i);
+				strong[i] = md5.digest(buffer.array());
+			}
+		}
+	}
+
+	/**
+	 * Scan of the source file writing the differences to the target file.
+	 */
+	private static final class Patch {
+
+		private final FileChannel in;
+		private final FileChannel out;
+		private final Signature signature;
+		private final int block;
+		private final MessageDigest md5 = md5();
+
+		// Window over the source: buffer[start, end) holds the source bytes starting at offset base + start
+		private final byte[] buffer;
+		private long base = 0;
+		private int start = 0;
+		private int end = 0;
+		private boolean eof = false;
+
+		// Offset in the source of the first byte not yet written or matched
+		private long literal = 0;
+
+		// Statistics
+		long written = 0;
+		long saved = 0;
+
+		/**
+		 * Prepares the scan of the given source.
+		 *
+		 * @param in the source file
+		 * @param out the target file
+		 * @param signature the checksums of the target file
+		 */
+		Patch(FileChannel in, FileChannel out, Signature signature) {
+			this.in = in;
+			this.out = out;
+			this.signature = signature;
+			this.block = signature.block;
+			this.buffer = new byte[Math.max(4 * block, 1024 * 1024)];
+		}
+
+		/**
+		 * Scans the whole source and writes every difference to the target.
+		 *
+		 * @throws IOException if a file cannot be read or written
+		 */
+		void run() throws IOException {
+			Checksum checksum = null;
+
+			while (true) {
+				if (!available(block))
+					break;
+
+				if (checksum == null)
+					checksum = new Checksum(buffer, start, block);
+
+				long position = base + start;
+				int match = find(checksum.value(), position);
+
+				if (match >= 0) {
+					writeLiteral(position);
+					long offset = (long) match * block;
+					if (offset == position) {
+						saved += block;
+					} else {
+						// The block moved, copy it from its old location before it can be overwritten
+						ByteBuffer data = ByteBuffer.allocate(block);
+						while (data.hasRemaining()) {
+							out.read(data, offset + data.position());
+						}
+						data.flip();
+						write(data, position);
+					}
+					start += block;
+					literal = position + block;
+					checksum = null;
+				} else {
+					// Slide the window by one byte
+					if (!available(block + 1)) {
+						break;
+					}
+					checksum.roll(buffer[start], buffer[start + block]);
+					start++;
+				}
+			}
+
+			// The end of the source was reached, whatever remains was not matched
+			writeLiteral(base + end);
+		}
+
+		/**
+		 * Looks for a target block matching the current window.<br/>
+		 * Only blocks located at or after the current position can be used, the block at the current position is preferred.
+		 *
+		 * @param weak the weak checksum of the window
+		 * @param position the offset of the window in the source
+		 * @return the index of the matching block, or -1 if there is none
+		 */
+		private int find(int weak, long position) {
+			List<Integer> candidates = signature.weak.get(weak);
+			if (candidates == null || (long) candidates.get(candidates.size() - 1) * block < position)
+				return -1;
+
+			md5.update(buffer, start, block);
+			byte[] hash = md5.digest();
+
+			int best = -1;
+			for (int i : candidates) {
+				long offset = (long) i * block;
+				if (offset < position || !Arrays.equals(hash, signature.strong[i]))
+					continue;
+				if (offset == position)
+					return i;
+				if (best < 0)
+					best = i;
+			}
+			return best;
+		}
+
+		/**
+		 * Makes sure the window holds at least the given number of bytes, reading more of the source if needed.
+		 *
+		 * @param length the number of bytes needed after the start of the window
+		 * @return true if the bytes are available, false if the end of the source was reached
+		 * @throws IOException if the source cannot be read
+		 */
+		private boolean available(int length) throws IOException {
+			while (end - start < length && !eof) {
+				if (end == buffer.length) {
+					// The bytes before the window are not needed anymore, except the pending literal
+					writeLiteral(base + start);
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					base += start;
+					end -= start;
+					start = 0;
+				}
+
+				int count = in.read(ByteBuffer.wrap(buffer, end, buffer.length - end), base + end);
+				if (count < 0)
+					eof = true;
+				else
+					end += count;
+			}
+			return end - start >= length;
+		}
+
+		/**
+		 * Writes the pending literal bytes, up to the given offset of the source.
+		 *
+		 * @param upTo the offset of the source where the literal stops
+		 * @throws IOException if the target cannot be written
+		 */
+		private void writeLiteral(long upTo) throws IOException {
+			if (upTo <= literal)
+				return;
+			int from = (int) (literal - base);
+			write(ByteBuffer.wrap(buffer, from, (int) (upTo - literal)), literal);
+			literal = upTo;
+		}
+
+		/**
+		 * Writes the given bytes to the target.
+		 *
+		 * @param data the bytes to write
+		 * @param position the offset in the target
+		 * @throws IOException if the target cannot be written
+		 */
+		private void write(ByteBuffer data, long position) throws IOException {
+			Throttle.get().transfer(data.remaining());
+			while (data.hasRemaining()) {
+				int count = out.write(data, position);
+				position += count;
+				written += count;
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Computes and caches digests of the content of files.<br/>
+ * The digest combines a CRC32 and a CRC32C of the content, read through memory-mapped chunks.
+ * Both are computed with hardware instructions on current processors, so hashing is bound by the disk.<br/>
+ * Digests are cached by path along with the size, date and file key (inode) of the file,
+ * and only computed again when one of them changes.
+ */
+public class DigestStore {
+
+	// Size of the memory-mapped chunks
+	private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+
+	// Cached digests, by path
+	private final Map<Path, Entry> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Digest of a file, along with the attributes of the file when it was computed.
+	 */
+	private static final class Entry {
+
+		final long size;
+		final long date;
+		final Object key;
+		final long digest;
+
+		Entry(long size, long date, Object key, long digest) {
+			this.size = size;
+			this.date = date;
+			this.key = key;
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * Returns the digest of the given file, from the cache if the file did not change since it was computed.
+	 *
+	 * @param file the file to hash
+	 * @return the digest of the content, never 0, or 0 if the file cannot be read
+	 */
+	public long digest(Path file) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			long size = attrs.size();
+			long date = attrs.lastModifiedTime().toMillis();
+			Object key = attrs.fileKey();
+
+			Entry entry = cache.get(file);
+			if (entry != null && entry.size == size && entry.date == date && Objects.equals(entry.key, key))
+				return entry.digest;
+
+			long digest = compute(file);
+			cache.put(file, new Entry(size, date, key, digest));
+			return digest;
+		} catch (IOException e) {
+			cache.remove(file);
+			return 0;
+		}
+	}
+
+	/**
+	 * Forgets the digest of the given file.
+	 *
+	 * @param file the file whose digest is no longer needed
+	 */
+	public void forget(Path file) {
+		cache.remove(file);
+	}
+
+	/**
+	 * Computes the digest of the given file.
+	 *
+	 * @param file the file to hash
+	 * @return the digest of the content, never 0
+	 * @throws IOException if the file cannot be read
+	 */
+	static long compute(Path file) throws IOException {
+		CRC32 crc = new CRC32();
+		CRC32C crcc = new CRC32C();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long position = 0; position < size; position += CHUNK_SIZE) {
+				MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+				crc.update(chunk.duplicate());
+				crcc.update(chunk);
+			}
+		}
+
+		long digest = (crc.getValue() << 32) | crcc.getValue();
+		return digest == 0 ? 1 : digest;
+	}
+}
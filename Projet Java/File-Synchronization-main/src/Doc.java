@@ -1,20 +1,44 @@
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.logging.Level;
 
 /**
- * Represents a document with its name and last modification date.
+ * Represents a document with its name, size and last modification date.
  */
 public class Doc {
 
+	/**
+	 * Order of relative paths in which a directory is walked: the entries of a folder are sorted by name,
+	 * and the content of a subfolder comes right after its name, before the siblings sorting after it.<br/>
+	 * This is the order of the characters, except that '/' sorts before any other character.
+	 */
+	public static final Comparator<String> PATH_ORDER = (a, b) -> {
+		int length = Math.min(a.length(), b.length());
+		for (int i = 0; i < length; i++) {
+			char x = a.charAt(i);
+			char y = b.charAt(i);
+			if (x != y) {
+				if (x == '/')
+					return -1;
+				if (y == '/')
+					return 1;
+				return x - y;
+			}
+		}
+		return a.length() - b.length();
+	};
+
 	// The name of the document.
 	public String name;
 
 	// The last modification date of the document in milliseconds since the epoch.
 	public long date;
 
+	// The size of the document in bytes, or -1 if unknown.
+	public long size;
+
 	/**
 	 * Constructs a new Doc object with the given name and last modification date.
 	 * 
@@ -22,8 +46,20 @@ public class Doc {
 	 * @param date The last modification date of the document in milliseconds since the epoch.
 	 */
 	public Doc(String name, long date) {
+		this(name, date, -1);
+	}
+
+	/**
+	 * Constructs a new Doc object with the given name, last modification date and size.
+	 * 
+	 * @param name The name of the document.
+	 * @param date The last modification date of the document in milliseconds since the epoch.
+	 * @param size The size of the document in bytes.
+	 */
+	public Doc(String name, long date, long size) {
 		this.name = name;
 		this.date = date;
+		this.size = size;
 	}
 
 	/**
@@ -43,20 +79,34 @@ public class Doc {
 	 */
 	@Override
 	public boolean equals(Object other) {
+		if (!(other instanceof Doc))
+			return false;
 		Doc d = (Doc) other;
 		return (name.equals(d.name) && date == d.date);
 	}
 
+	/**
+	 * Returns a hash code consistent with {@link #equals(Object)}.
+	 * @return the hash code of the name and date.
+	 */
+	@Override
+	public int hashCode() {
+		return 31 * name.hashCode() + Long.hashCode(date);
+	}
+
 	/**
 	 * This method saves the document to the given directory. If the document is a directory, it creates it in the target directory.
-	 * If the document is a file, it copies the content from the source directory to the target directory.
+	 * If the document is a file, it copies the content from the source directory to the target directory
+	 * without loading it in memory, and replaces the target atomically.
 	 * It also sets the last modified date of the target document to be the same as the original document.
 	 *
+	 * @param from The source directory the document comes from.
 	 * @param dir The target directory where the document should be saved.
+	 * @return true if the document was saved, false if an error occurred.
 	 */
-	public void saveTo(String dir) {
+	public boolean saveTo(String from, String dir) {
 		// Get the source and target file objects
-		File sourceFile = new File(History.getSourcePath() + name);
+		File sourceFile = new File(from + name);
 		File file = new File(dir + name);
 
 		// Create necessary directories
@@ -64,73 +114,100 @@ public class Doc {
 
 		// If the document is a directory, create it in the target directory
 		if (sourceFile.isDirectory()) {
-			History.getLogger().log(Level.INFO, sourceFile.getAbsolutePath() + ": DIRECTORY");
+			History.getLogger().log(Level.FINE, () -> sourceFile.getAbsolutePath() + ": DIRECTORY");
 			file.mkdir();
-		} else {
-			// If the document is a file, copy its content from the source directory to the target directory
-			if (!file.exists()) {
-				try {
-					file.createNewFile();
-					file.setLastModified(file.lastModified());
-				} catch (IOException e) {
-					History.getLogger().log(Level.SEVERE,
-							"Error occurred while creating the file. Do you have the correct permissions?");
-					History.getLogger().log(Level.SEVERE, e.getMessage());
-					return;
-				}
-			}
+			file.setLastModified(date);
+			return true;
+		}
 
-			try {
-				byte[] bytes = Files.readAllBytes(Path.of(sourceFile.getAbsolutePath()));
-				Files.write(Path.of(file.getAbsolutePath()), bytes);
-			} catch (IOException e) {
-				History.getLogger().log(Level.SEVERE,
-						"An error occurred while writing the file. Do you have the correct permissions?");
-				History.getLogger().log(Level.SEVERE, e.getMessage());
-			}
+		// If the document is a file, stream its content from the source directory to the target directory
+		// The last modified date of the target document is set to be the same as the original document
+		try {
+			FileCopier.copy(sourceFile.toPath(), file.toPath(), date);
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE,
+					"An error occurred while writing the file. Do you have the correct permissions?");
+			History.getLogger().log(Level.SEVERE, e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * This method updates the copy of the document already present in the given directory.
+	 * Large files are patched in place, only the changed blocks are written (see {@link DeltaCopier}).
+	 * Other files are overwritten in place, keeping their inode, if the "update.inplace" property is true,
+	 * or replaced atomically as in {@link #saveTo(String, String)} otherwise.
+	 * If there is no copy to update, the document is saved instead.
+	 *
+	 * @param from The source directory the document comes from.
+	 * @param dir The target directory where the document should be updated.
+	 * @return true if the document was updated, false if an error occurred.
+	 */
+	public boolean updateIn(String from, String dir) {
+		// Get the source and target file objects
+		File sourceFile = new File(from + name);
+		File file = new File(dir + name);
 
+		if (sourceFile.isDirectory() || !file.isFile())
+			return saveTo(from, dir);
+
+		try {
+			if (DeltaCopier.accepts(sourceFile.toPath(), file.toPath(), History.getConfig().getLong("delta.threshold", 0)))
+				DeltaCopier.copy(sourceFile.toPath(), file.toPath(), date);
+			else if (History.getConfig().getBoolean("update.inplace"))
+				FileCopier.overwrite(sourceFile.toPath(), file.toPath(), date);
+			else
+				FileCopier.copy(sourceFile.toPath(), file.toPath(), date);
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE,
+					"An error occurred while writing the file. Do you have the correct permissions?");
+			History.getLogger().log(Level.SEVERE, e.getMessage());
+			return false;
 		}
 
-		// Set the last modified date of the target document to be the same as the original document
-		file.setLastModified(date);
+		return true;
 	}
 
 	/**
 	 * Deletes the file corresponding to this Doc object from the specified directory.
+	 * If it is a directory, its whole content is deleted as well.
 	 *
 	 * @param dir the directory to delete the file from
+	 * @return true if the file no longer exists, false otherwise
 	 */
-	public void deleteFrom(String dir) {
+	public boolean deleteFrom(String dir) {
 	    File file = new File(dir + name);
-	    file.delete();
+	    delete(file);
+	    return !file.exists();
 	}
 
 	/**
-	 * Checks whether this Doc object should be ignored according to the list of ignored files/directories.
+	 * Deletes the given file, or the given directory and all of its content.
 	 *
-	 * @return true if this Doc object should be ignored, false otherwise
+	 * @param file the file or directory to delete
 	 */
-	public boolean isIgnored() {
-	    for (String ignoreValue : History.getIgnoredList()) {
-	        String nameWithoutPath = new File(name).getName();
-	        if (ignoreValue.charAt(0) == '*') {
-	            // ignoreValue is a wildcard, so check if nameWithoutPath ends with the non-wildcard part
-	            String nonWildcardPart = ignoreValue.substring(1);
-	            if (nameWithoutPath.endsWith(nonWildcardPart)) {
-	                return true;
-	            }
-	        } else {
-	            // ignoreValue is a full file/directory name, check if the name matches exactly
-	            if (nameWithoutPath.equals(ignoreValue) || name.equals(ignoreValue)) {
-	                return true;
-	            }
-	            // check if the file is in an ignored directory
-	            if (name.startsWith(ignoreValue + "/") || name.startsWith(ignoreValue + "\\")) {
-	                return true;
-	            }
+	private static void delete(File file) {
+	    // Never follow a link, only the link itself is deleted
+	    File[] children = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+	    if (children != null) {
+	        for (File child : children) {
+	            delete(child);
 	        }
 	    }
-	    return false;
+	    file.delete();
+	}
+
+	/**
+	 * Checks whether this Doc object should be ignored according to the list of ignored files/directories.<br/>
+	 * The check is done by the compiled list, see {@link IgnoreMatcher}.
+	 *
+	 * @param matcher the compiled list of ignored files of the job
+	 * @return true if this Doc object should be ignored, false otherwise
+	 */
+	public boolean isIgnored(IgnoreMatcher matcher) {
+	    return matcher.isIgnored(name, false);
 	}
 
 
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Copies files from the source directory to the target directory.<br/>
+ * The content is streamed with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which lets the operating system copy the data (sendfile on Linux) without loading it on the heap,
+ * so the memory used does not depend on the size of the file. When the transfers are limited by the {@link Throttle},
+ * the content is streamed in chunks, each waiting for its share of the rate.<br/>
+ * The copy is written to a temporary file next to the target, then renamed over it,
+ * so a reader of the target never sees a half-written file.
+ */
+public final class FileCopier {
+
+	// Suffix of the temporary files written during a copy
+	public static final String TMP_SUFFIX = ".synctmp";
+
+	/**
+	 * This class only provides static methods.
+	 */
+	private FileCopier() {
+	}
+
+	/**
+	 * Copies the given source file over the given target file and sets its last modification date.
+	 *
+	 * @param source the file to copy
+	 * @param target the file to create or replace
+	 * @param date the last modification date of the copy in milliseconds since the epoch
+	 * @return the number of bytes copied
+	 * @throws IOException if the file cannot be read or written
+	 */
+	public static long copy(Path source, Path target, long date) throws IOException {
+		Path tmp = target.resolveSibling("." + target.getFileName() + TMP_SUFFIX);
+		Throttle throttle = Throttle.get();
+		long position = 0;
+
+		try {
+			try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING)) {
+				long size = in.size();
+				while (position < size) {
+					long count = Math.min(size - position, throttle.chunk());
+					throttle.transfer(count);
+					count = in.transferTo(position, count, out);
+					// The source was truncated while being copied
+					if (count <= 0)
+						break;
+					position += count;
+				}
+			}
+
+			Files.setLastModifiedTime(tmp, FileTime.fromMillis(date));
+			replace(tmp, target);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		return position;
+	}
+
+	/**
+	 * Overwrites the content of an existing target file with the content of the source file, and sets its last modification date.<br/>
+	 * The target keeps its inode, permissions and allocated blocks, but a reader may see a partially written file.
+	 *
+	 * @param source the file to copy
+	 * @param target the existing file to overwrite
+	 * @param date the last modification date of the copy in milliseconds since the epoch
+	 * @return the number of bytes copied
+	 * @throws IOException if the file cannot be read or written
+	 */
+	public static long overwrite(Path source, Path target, long date) throws IOException {
+		Throttle throttle = Throttle.get();
+		long position = 0;
+
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+			long size = in.size();
+			while (position < size) {
+				long count = Math.min(size - position, throttle.chunk());
+				throttle.transfer(count);
+				count = in.transferTo(position, count, out.position(position));
+				if (count <= 0)
+					break;
+				position += count;
+			}
+			out.truncate(position);
+		}
+
+		Files.setLastModifiedTime(target, FileTime.fromMillis(date));
+		return position;
+	}
+
+	/**
+	 * Moves the given file over the target file, atomically if the file system supports it.
+	 *
+	 * @param file the file to move
+	 * @param target the file to replace
+	 * @throws IOException if the file cannot be moved
+	 */
+	public static void replace(Path file, Path target) throws IOException {
+		try {
+			Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -41,15 +41,18 @@ public class GUI {
 
 		// Create graphical components for source and target folders
 		JPanel mainPanel = new JPanel(new BorderLayout(10, 10));
-		JPanel inputPanel = new JPanel(new GridLayout(3, 2, 5, 5));
+		JPanel inputPanel = new JPanel(new GridLayout(4, 2, 5, 5));
 		JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 10));
 		JLabel labelSource = new JLabel("Source folder:");
 		JLabel labelTarget = new JLabel("Target folder:");
 		JLabel labelIgnore = new JLabel("Ignore files types (separator: ', '):");
 		JLabel labelIgnoredList = new JLabel(History.getIgnoredList().toString());
+		JLabel labelThrottle = new JLabel("Speed limit (bytes/s, ex: 10m):");
+		JLabel labelThrottleValue = new JLabel(speed(History.getConfig().getString("throttle.bytes")));
 		JTextField sourceField = new JTextField(20);
 		JTextField targetField = new JTextField(20);
 		JTextField ignoreField = new JTextField(20);
+		JTextField throttleField = new JTextField(20);
 		JButton sourceButton = new JButton("Browse...");
 		JButton targetButton = new JButton("Browse...");
 		JButton startButton = new JButton("Synchroniser");
@@ -59,15 +62,19 @@ public class GUI {
 		labelTarget.setHorizontalAlignment(SwingConstants.CENTER);
 		labelIgnore.setHorizontalAlignment(SwingConstants.CENTER);
 		labelIgnoredList.setHorizontalAlignment(SwingConstants.CENTER);
+		labelThrottle.setHorizontalAlignment(SwingConstants.CENTER);
+		labelThrottleValue.setHorizontalAlignment(SwingConstants.CENTER);
 		startButton.setPreferredSize(new Dimension(150, 30));
 		sourceField.setBorder(BorderFactory.createLineBorder(Color.WHITE, 1));
 		targetField.setBorder(BorderFactory.createLineBorder(Color.WHITE, 1));
 		ignoreField.setBorder(BorderFactory.createLineBorder(Color.WHITE, 1));
+		throttleField.setBorder(BorderFactory.createLineBorder(Color.WHITE, 1));
 
 		// Add components to the input panel
 		sourceField.setText(History.getConfig().getString("source"));
 		targetField.setText(History.getConfig().getString("target"));
 		ignoreField.setText(History.getConfig().getString("ignore"));
+		throttleField.setText(History.getConfig().getString("throttle.bytes"));
 		
 		sourceButton.setPreferredSize(new Dimension(200, 15));
 		targetButton.setPreferredSize(new Dimension(200, 15));
@@ -81,15 +88,20 @@ public class GUI {
 		inputPanel.add(labelIgnore);
 		inputPanel.add(ignoreField);
 		inputPanel.add(labelIgnoredList);
+		inputPanel.add(labelThrottle);
+		inputPanel.add(throttleField);
+		inputPanel.add(labelThrottleValue);
 
 		sourceField.setBorder(BorderFactory.createCompoundBorder(sourceField.getBorder(), BorderFactory.createEmptyBorder(5, 5, 5, 5)));
 		targetField.setBorder(BorderFactory.createCompoundBorder(targetField.getBorder(), BorderFactory.createEmptyBorder(5, 5, 5, 5)));
 		ignoreField.setBorder(BorderFactory.createCompoundBorder(ignoreField.getBorder(), BorderFactory.createEmptyBorder(5, 5, 5, 5)));
+		throttleField.setBorder(BorderFactory.createCompoundBorder(throttleField.getBorder(), BorderFactory.createEmptyBorder(5, 5, 5, 5)));
 
 		// Adding graphical components to the input panel
 		sourceField.setText(History.getConfig().getString("source"));
 		targetField.setText(History.getConfig().getString("target"));
 		ignoreField.setText(History.getConfig().getString("ignore"));
+		throttleField.setText(History.getConfig().getString("throttle.bytes"));
 
 		inputPanel.add(labelSource);
 		inputPanel.add(sourceField);
@@ -100,10 +112,14 @@ public class GUI {
 		inputPanel.add(labelIgnore);
 		inputPanel.add(ignoreField);
 		inputPanel.add(labelIgnoredList);
+		inputPanel.add(labelThrottle);
+		inputPanel.add(throttleField);
+		inputPanel.add(labelThrottleValue);
 
 		sourceField.setBorder(BorderFactory.createCompoundBorder(sourceField.getBorder(), BorderFactory.createEmptyBorder(5, 5, 5, 5)));
 		targetField.setBorder(BorderFactory.createCompoundBorder(targetField.getBorder(), BorderFactory.createEmptyBorder(5, 5, 5, 5)));
 		ignoreField.setBorder(BorderFactory.createCompoundBorder(ignoreField.getBorder(), BorderFactory.createEmptyBorder(5, 5, 5, 5)));
+		throttleField.setBorder(BorderFactory.createCompoundBorder(throttleField.getBorder(), BorderFactory.createEmptyBorder(5, 5, 5, 5)));
 
 		// Adding graphical components to the button panel
 		buttonPanel.add(startButton);
@@ -193,6 +209,24 @@ public class GUI {
 		});
 
 
+		/**
+		 * ActionListener for the throttleField.
+		 * Applies the speed limit typed when Enter is pressed, even while the synchronization runs, and saves it.
+		 */
+		throttleField.addActionListener(new ActionListener() {
+		    @Override
+		    public void actionPerformed(ActionEvent e) {
+		        String text = throttleField.getText().trim();
+		        labelThrottleValue.setText(speed(text));
+		        try {
+		            Throttle.get().setBytesPerSecond(text.isEmpty() ? 0 : Throttle.parse(text));
+		            History.getConfig().setString("throttle.bytes", text);
+		        } catch (NumberFormatException ex) {
+		            // The label shows that the limit is invalid
+		        }
+		    }
+		});
+
 		/**
 		 * ActionListener for the startButton. It checks if the source and target folders are valid
 		 * and if the process is already running, it stops it. Otherwise, it sets the source path, target path,
@@ -285,4 +319,21 @@ public class GUI {
 		frame.setResizable(false);
 		frame.setMaximumSize(new Dimension(200, 800));
 	}
+
+	/**
+	 * Describes a speed limit, as typed in the configuration file or in the GUI.
+	 *
+	 * @param text the limit in bytes per second, see {@link Throttle#parse(String)}, or null if there is none
+	 * @return the text of the limit
+	 */
+	private static String speed(String text) {
+		if (text == null || text.isBlank())
+			return "Unlimited";
+		try {
+			long bytes = Throttle.parse(text);
+			return bytes <= 0 ? "Unlimited" : String.format("%.1f MB/s", bytes / (1024.0 * 1024));
+		} catch (NumberFormatException e) {
+			return "Invalid limit";
+		}
+	}
 }
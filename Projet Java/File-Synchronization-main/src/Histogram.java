@@ -0,0 +1,119 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of positive values, such as durations.<br/>
+ * Like HdrHistogram, values are counted in buckets whose width grows with the value: every power of two is split in
+ * {@value #SUB_BUCKETS} buckets, so a percentile is known within 12.5% whatever the range of the values,
+ * with a fixed array of counters. Recording a value is one atomic increment and never blocks.
+ */
+public class Histogram {
+
+	// Buckets per power of two, as a number of bits
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// Count of values in each bucket
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+	// Number, sum and maximum of the values recorded
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value the value, negative values are counted as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Returns the bucket of the given value.
+	 *
+	 * @param value the value, positive or zero
+	 * @return the index of the bucket
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the highest value counted in the given bucket.
+	 *
+	 * @param index the index of the bucket
+	 * @return the upper bound of the bucket
+	 */
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * Returns the value below which the given fraction of the values fall.
+	 *
+	 * @param quantile the fraction, between 0 and 1
+	 * @return the value, or 0 if nothing was recorded
+	 */
+	public long percentile(double quantile) {
+		long total = 0;
+		long[] snapshot = new long[counts.length()];
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of the values recorded.
+	 *
+	 * @return the sum
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the highest value recorded.
+	 *
+	 * @return the maximum, or 0 if nothing was recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+}
@@ -3,14 +3,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
-import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
-import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 
 /**
  * 
@@ -19,24 +15,29 @@ import java.util.logging.SimpleFormatter;
  */
 public class History extends Thread {
 
-	// Paths to the source and target directories
-	private static String sourcePath;
-	private static String targetPath;
+	// Paths to the source and target directories, set by the GUI and read by the threads of the engine
+	private static volatile String sourcePath;
+	private static volatile String targetPath;
 
 	// List of files to ignore during synchronization
-	private static List<String> ignoredFiles = new ArrayList<>();
+	private static volatile List<String> ignoredFiles = new ArrayList<>();
 
-	// Flags to control application behavior
-	private static boolean start = true;
+	// Flags to control application behavior, the state of the process is read by every running job
+	private static volatile boolean start = true;
 	private static boolean gui = false;
 
+	// True to only run the jobs of the configuration file
+	private static boolean jobsOnly = false;
+
 	// Logger object for logging application messages
 	private static Logger logger = Logger.getLogger("History");
-	ConsoleHandler handler = new ConsoleHandler();
 
 	// Configuration object for loading application settings
 	private static Config config;
 
+	// Engine running the synchronization jobs
+	private static SyncEngine engine;
+
 	/**
 	 * Main method that starts the application.
 	 * 
@@ -66,134 +67,93 @@ public class History extends Thread {
 			GUI gui = new GUI();
 		}
 
-		// Create a new thread to run the synchronization process
-		Thread thread = new Thread(() -> {
+		// Start the jobs of the configuration file, and the job of the source and target folders unless only the jobs are run
+		engine = new SyncEngine(config);
+		startJobs();
+		MetricsServer.start(config);
+		if (!jobsOnly) {
 			logger.log(Level.INFO, "Listening...");
-
-			// Run an infinite loop while the application is running
-			while (true) {
-				if(start)
-				{
-					// Call the synchronize function
-					/*
-					 * 
-					 * We shall replace every "\" for "/" on Windows operating systems for error handling about files and folder
-					 * because \ need to be escaped sometimes
-					 * 
-					 */
-					synchronize(sourcePath.replaceAll("\\\\", "/"), targetPath.replaceAll("\\\\", "/"));					
-				}
-
-				try {
-					// Pause the thread for 1000 milliseconds
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-		});
-
-		// Start the thread
-		thread.start();
+			engine.schedule(History::refreshDefaultJob, 1000);
+		}
 
 		// Add a shutdown hook to detect when the application is closing
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			public void run() {
 				// In case we need to save logs or other
+				engine.shutdown();
+				if (DeltaCopier.getBytesSaved() > 0)
+					logger.log(Level.INFO, "Delta updates: " + DeltaCopier.getBytesWritten() + " bytes written, "
+							+ DeltaCopier.getBytesSaved() + " bytes reused");
 				logger.log(Level.INFO, "Fin du processus");
 			}
 		});
 	}
 
 	/**
-	*
-    * This method synchronizes two directories, source and target.<br/>
-    * It compares the contents of the two directories and identifies the files that need to be added to or deleted from the target directory.<br/>
-    * The method logs any changes made during synchronization.<br/>
-	*
-    * @param _source the source directory to synchronize from
-    * @param _target the target directory to synchronize to
-    */
-	public static void synchronize(String _source, String _target) {
-		History h = new History();
-
-		// List of files in source and target directories
-		List<Doc> source = h.listContent(_source);
-		List<Doc> target = h.listContent(_target);
-
-		// List of files to add and to delete
-		List<Doc> toAdd = h.difference(source, target);
-		List<Doc> toDel = h.difference(target, source);
+	 *
+	 * Starts the jobs listed by the "jobs" property of the configuration file.<br/>
+	 * Each job synchronizes its own pair of folders, see {@link SyncJob#fromConfig(SyncEngine, Config, String)}.
+	 */
+	private static void startJobs() {
+		String names = config.getString("jobs");
+		if (names == null || names.isBlank())
+			return;
 
-		// Add missing files to the target directory
-		for (Doc doc : toAdd) {
-			History.getLogger().log(Level.INFO, "Change detected on '" + doc.name + "'. File synchronized");
-			doc.saveTo(_target);
-		}
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (name.isEmpty())
+				continue;
+			if (name.equals(SyncJob.DEFAULT)) {
+				logger.severe("Job name '" + SyncJob.DEFAULT + "' is reserved for the source and target folders");
+				continue;
+			}
 
-		// Delete files present in the target directory but not in the source directory
-		for (Doc doc : toDel) {
-			History.getLogger().log(Level.INFO, "Deletion detected on '" + doc.name + "'. File deleted");
-			doc.deleteFrom(_target);
+			SyncJob job = SyncJob.fromConfig(engine, config, name);
+			if (job != null)
+				engine.add(job);
 		}
 	}
 
 	/**
-	 * Returns a list of all documents in the specified directory and its subdirectories.
-	 * @param path the path of the directory to search
-	 * @return a list of Doc objects representing each document found in the directory
+	 *
+	 * Restarts the job of the source and target folders when they or the ignored files changed.<br/>
+	 * The job is only created once the process is started, then the engine synchronizes both folders
+	 * and replicates the changes reported by a {@link Watcher}, or synchronizes them every second if the source cannot be watched.
 	 */
-	private List<Doc> listContent(String path) {
-		path = path.replaceAll("\\\\", "/");
-		File file = new File(path);
-		List<Doc> docs = new ArrayList<>();
-
-		// Browse all files in the directory and add them to the list
-		for (File f : file.listFiles()) {
-			if(f.isDirectory())
-			{
-				docs.addAll(listContent(f.getAbsolutePath().replaceAll("\\\\", "/")));
-			}
-			else
-			{
-				docs.add(new Doc(f.getAbsolutePath().replaceAll("\\\\", "/").replaceAll(getSourcePath(), "").replaceAll(getTargetPath(), ""), f.lastModified()));
-			}
-		}
+	private static void refreshDefaultJob() {
+		// Both paths already use "/" separators, see setSourcePath and setTargetPath
+		String source = sourcePath;
+		String target = targetPath;
+		List<String> ignored = ignoredFiles;
+		if (!start || source == null || target == null)
+			return;
 
-		return docs;
+		SyncJob job = engine.get(SyncJob.DEFAULT);
+		if (job == null || !job.matches(source, target, ignored)) {
+			// Close the previous job first, both share the same snapshot index file
+			engine.remove(SyncJob.DEFAULT);
+			engine.add(SyncJob.create(engine, config, SyncJob.DEFAULT, source, target, ignored));
+		}
 	}
 
 	/**
+	 * Returns the engine running the synchronization jobs.
 	 *
-	 * This method calculates the difference between two lists of documents.<br/>
-	 * It returns a new list that contains all the documents in the source list
-	 * that are not present in the reference list and are not marked as ignored.
-	 * 
-	 * @param source the source list of documents
-	 * @param reference the reference list of documents
-	 * @return a new list of documents that are in the source list but not in the reference list
+	 * @return the engine
 	 */
-	private List<Doc> difference(List<Doc> source, List<Doc> reference) {
-		List<Doc> diff = new ArrayList<>();
-
-		for (Doc s : source) {
-			if (!reference.contains(s) && !s.isIgnored())
-				diff.add(s);
-		}
-
-		return diff;
+	public static SyncEngine getEngine() {
+		return engine;
 	}
 
-
 	/**
 	 *
 	 * This method initializes and configures the application logger by reading the
 	 *
 	 * logger configuration from the logging.properties file.<br/>
 	 *
-	 * It also uses a formatter to format log messages.<br/>
+	 * Records are written to the log file and the console by an {@link AsyncLogHandler},
 	 *
-	 * Finally, it adds the configured handler to the logger.
+	 * so logging never waits for the disk.
 	 */
 	private void initLogger() {
 		try {
@@ -204,21 +164,9 @@ public class History extends Thread {
 			e.printStackTrace();
 		}
 
-		// Configure formatter to format log messages
-		SimpleFormatter formatter = new SimpleFormatter() {
-			private static final String format = "[%1$tF %1$tT] [%2$s]: %3$s%n";
-
-			@Override
-			public synchronized String format(LogRecord lr) {
-				return String.format(format, new Date(lr.getMillis()), lr.getLevel().getName(), lr.getMessage());
-			}
-
-		};
-
-		// Configure handler and add to logger
-		handler.setLevel(Level.ALL);
-		handler.setFormatter(formatter);
-		logger.addHandler(handler);
+		// Write the records from a background thread
+		logger.addHandler(new AsyncLogHandler());
+		logger.setUseParentHandlers(false);
 	}
 
 	/**
@@ -267,6 +215,14 @@ public class History extends Thread {
 				setIgnoredList(Arrays.asList(ignored.split(", ")));
 			}
 
+		} else if (mode.equalsIgnoreCase("jobs")) {
+			String names = config.getString("jobs");
+			if (names == null || names.isBlank()) {
+				logger.log(Level.INFO, "Usage: java -jar " + jarFileName + " jobs, with the jobs listed in config.properties");
+				System.exit(1);
+			}
+			jobsOnly = true;
+
 		} else if (mode.equalsIgnoreCase("nogui")) {
 			if (args.length < 3) {
 				logger.log(Level.INFO, "Usage: java -jar " + jarFileName + " [gui|nogui] [source] [target] [ignored files]");
@@ -317,7 +273,7 @@ public class History extends Thread {
 	/**
 	 * Toggles the state of the process.
 	 */
-	public static void toggleProcess() {
+	public static synchronized void toggleProcess() {
 		start = !start;
 	}
 
@@ -378,7 +334,8 @@ public class History extends Thread {
 	 */
 	public static void setSourcePath(String path) {
 		logger.log(Level.INFO, "Source path set as '" + path + "'");
-		sourcePath = path.replaceAll("\\\\", "/");
+		// We shall replace every "\\" for "/" on Windows operating systems for error handling about files and folder
+		sourcePath = path.replace('\\', '/');
 		config.setString("source", path);
 	}
 
@@ -389,7 +346,8 @@ public class History extends Thread {
 	 */
 	public static void setTargetPath(String path) {
 		logger.log(Level.INFO, "Target path set as '" + path + "'");
-		targetPath = path.replaceAll("\\\\", "/");
+		// We shall replace every "\\" for "/" on Windows operating systems for error handling about files and folder
+		targetPath = path.replace('\\', '/');
 		config.setString("target", path);
 	}
 
@@ -0,0 +1,374 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiled form of the list of ignored files, with gitignore-like rules:
+ * <ul>
+ * <li><code>name</code> ignores every file or directory with this name, at any depth;</li>
+ * <li><code>dir/name</code> or <code>/name</code> only matches this path, relative to the root;</li>
+ * <li><code>*.ext</code>, <code>?</code>, <code>[abc]</code> and <code>**</code> are wildcards,
+ * <code>**&#47;build</code> matches <code>build</code> at any depth;</li>
+ * <li>a trailing <code>/</code> only matches directories, whose whole content is then ignored;</li>
+ * <li>a leading <code>!</code> includes again what a previous rule ignored.</li>
+ * </ul>
+ * When several rules match, the last one wins.<br/>
+ * Literal names, literal paths and <code>*suffix</code> rules are stored in character tries,
+ * so matching them costs the length of the name whatever the number of rules. Only the other wildcards are tried one by one.
+ * Matching never allocates.
+ */
+public class IgnoreMatcher {
+
+	// Rules whose result is "include again"
+	private final boolean[] negated;
+
+	// Literal names, literal paths and reversed suffixes of "*suffix" rules
+	private final Node names = new Node();
+	private final Node paths = new Node();
+	private final Node suffixes = new Node();
+
+	// Other wildcard rules, by increasing rule index
+	private final List<Glob> globs = new ArrayList<>();
+
+	/**
+	 * Node of a character trie, storing the index of the last rule ending on it.
+	 */
+	private static final class Node {
+
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+
+		// Last rule matching files and directories, and last rule only matching directories
+		int rule = -1;
+		int dirRule = -1;
+
+		/**
+		 * Returns the child reached by the given character.
+		 *
+		 * @param c the character
+		 * @return the child, or null if there is none
+		 */
+		Node get(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c)
+					return children[i];
+			}
+			return null;
+		}
+
+		/**
+		 * Returns the child reached by the given character, creating it if needed.
+		 *
+		 * @param c the character
+		 * @return the child
+		 */
+		Node add(char c) {
+			Node child = get(c);
+			if (child == null) {
+				child = new Node();
+				keys = Arrays.copyOf(keys, keys.length + 1);
+				children = Arrays.copyOf(children, children.length + 1);
+				keys[keys.length - 1] = c;
+				children[children.length - 1] = child;
+			}
+			return child;
+		}
+
+		/**
+		 * Records a rule ending on this node.
+		 *
+		 * @param index the index of the rule
+		 * @param directory true if the rule only matches directories
+		 */
+		void mark(int index, boolean directory) {
+			if (directory)
+				dirRule = index;
+			else
+				rule = index;
+		}
+
+		/**
+		 * Returns the last rule ending on this node that applies to the given kind of entry.
+		 *
+		 * @param directory true if the entry is a directory
+		 * @return the index of the rule, or -1 if there is none
+		 */
+		int rule(boolean directory) {
+			return directory ? Math.max(rule, dirRule) : rule;
+		}
+	}
+
+	/**
+	 * Wildcard rule matched against the name or the whole path of an entry.
+	 */
+	private static final class Glob {
+
+		final int index;
+		final String pattern;
+		final boolean anchored;
+		final boolean directory;
+
+		Glob(int index, String pattern, boolean anchored, boolean directory) {
+			this.index = index;
+			this.pattern = pattern;
+			this.anchored = anchored;
+			this.directory = directory;
+		}
+	}
+
+	/**
+	 * Compiles the given list of rules.
+	 *
+	 * @param rules the rules, in order
+	 */
+	public IgnoreMatcher(List<String> rules) {
+		negated = new boolean[rules.size()];
+
+		for (int i = 0; i < rules.size(); i++) {
+			String rule = rules.get(i).trim();
+			if (rule.isEmpty() || rule.startsWith("#"))
+				continue;
+
+			if (rule.startsWith("!")) {
+				negated[i] = true;
+				rule = rule.substring(1);
+			}
+
+			boolean directory = rule.endsWith("/");
+			if (directory)
+				rule = rule.substring(0, rule.length() - 1);
+
+			// "**/name" is the same as "name"
+			while (rule.startsWith("**/"))
+				rule = rule.substring(3);
+
+			boolean anchored = rule.indexOf('/') >= 0;
+			if (rule.startsWith("/"))
+				rule = rule.substring(1);
+			if (rule.isEmpty())
+				continue;
+
+			if (!hasWildcard(rule, 0)) {
+				add(anchored ? paths : names, rule, false, i, directory);
+			} else if (!anchored && rule.charAt(0) == '*' && !hasWildcard(rule, 1)) {
+				add(suffixes, rule.substring(1), true, i, directory);
+			} else {
+				globs.add(new Glob(i, rule, anchored, directory));
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the given rule holds a wildcard after the given position.
+	 *
+	 * @param rule the rule
+	 * @param from the first position to check
+	 * @return true if a wildcard character is found, false otherwise
+	 */
+	private static boolean hasWildcard(String rule, int from) {
+		for (int i = from; i < rule.length(); i++) {
+			char c = rule.charAt(i);
+			if (c == '*' || c == '?' || c == '[')
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a literal to a trie.
+	 *
+	 * @param trie the trie
+	 * @param literal the literal to add
+	 * @param reversed true to add the characters from the last one
+	 * @param index the index of the rule
+	 * @param directory true if the rule only matches directories
+	 */
+	private static void add(Node trie, String literal, boolean reversed, int index, boolean directory) {
+		Node node = trie;
+		for (int i = 0; i < literal.length(); i++) {
+			node = node.add(literal.charAt(reversed ? literal.length() - 1 - i : i));
+		}
+		node.mark(index, directory);
+	}
+
+	/**
+	 * Checks whether the given file or directory is ignored, either by itself or because one of its parent directories is.
+	 *
+	 * @param path the path relative to the root, with '/' separators
+	 * @param directory true if the path is a directory
+	 * @return true if the entry is ignored, false otherwise
+	 */
+	public boolean isIgnored(String path, boolean directory) {
+		for (int i = path.indexOf('/'); i > 0; i = path.indexOf('/', i + 1)) {
+			if (matches(path, i, true))
+				return true;
+		}
+		return matches(path, path.length(), directory);
+	}
+
+	/**
+	 * Checks whether the given entry is ignored by the rules themselves, without looking at its parent directories.<br/>
+	 * A walker that prunes ignored directories only needs this check, since the parents were checked before.
+	 *
+	 * @param path the path relative to the root, with '/' separators
+	 * @param directory true if the path is a directory
+	 * @return true if the entry is ignored, false otherwise
+	 */
+	public boolean matches(String path, boolean directory) {
+		return matches(path, path.length(), directory);
+	}
+
+	/**
+	 * Checks whether the entry made of the first characters of the given path is ignored by the rules.
+	 *
+	 * @param path the path relative to the root, with '/' separators
+	 * @param end the length of the entry path
+	 * @param directory true if the entry is a directory
+	 * @return true if the last matching rule ignores the entry, false if it includes it again or no rule matches
+	 */
+	private boolean matches(String path, int end, boolean directory) {
+		int start = path.lastIndexOf('/', end - 1) + 1;
+		int best = -1;
+
+		// Literal name
+		Node node = names;
+		for (int i = start; i < end && node != null; i++) {
+			node = node.get(path.charAt(i));
+		}
+		if (node != null)
+			best = Math.max(best, node.rule(directory));
+
+		// Literal path
+		node = paths;
+		for (int i = 0; i < end && node != null; i++) {
+			node = node.get(path.charAt(i));
+		}
+		if (node != null)
+			best = Math.max(best, node.rule(directory));
+
+		// Suffixes, every node passed is a suffix of the name
+		node = suffixes;
+		best = Math.max(best, node.rule(directory));
+		for (int i = end - 1; i >= start && node != null; i--) {
+			node = node.get(path.charAt(i));
+			if (node != null)
+				best = Math.max(best, node.rule(directory));
+		}
+
+		// Wildcards, only those declared after the best rule so far can change the result
+		for (int g = globs.size() - 1; g >= 0; g--) {
+			Glob glob = globs.get(g);
+			if (glob.index <= best)
+				break;
+			if (glob.directory && !directory)
+				continue;
+			if (glob(glob.pattern, 0, path, glob.anchored ? 0 : start, end)) {
+				best = glob.index;
+				break;
+			}
+		}
+
+		return best >= 0 && !negated[best];
+	}
+
+	/**
+	 * Matches a wildcard pattern against a part of a path.<br/>
+	 * <code>*</code> and <code>?</code> do not match '/', <code>**</code> does.
+	 *
+	 * @param pattern the pattern
+	 * @param p the position in the pattern
+	 * @param text the path
+	 * @param t the position in the path
+	 * @param end the end of the part of the path to match
+	 * @return true if the rest of the pattern matches the rest of the part, false otherwise
+	 */
+	private static boolean glob(String pattern, int p, String text, int t, int end) {
+		while (p < pattern.length()) {
+			char c = pattern.charAt(p);
+
+			if (c == '*') {
+				if (p + 1 < pattern.length() && pattern.charAt(p + 1) == '*') {
+					p += 2;
+					if (p < pattern.length() && pattern.charAt(p) == '/') {
+						// "**/" matches zero or more directories
+						p++;
+						if (glob(pattern, p, text, t, end))
+							return true;
+						for (int k = t; k < end; k++) {
+							if (text.charAt(k) == '/' && glob(pattern, p, text, k + 1, end))
+								return true;
+						}
+						return false;
+					}
+					for (int k = t; k <= end; k++) {
+						if (glob(pattern, p, text, k, end))
+							return true;
+					}
+					return false;
+				}
+
+				p++;
+				for (int k = t; ; k++) {
+					if (glob(pattern, p, text, k, end))
+						return true;
+					if (k == end || text.charAt(k) == '/')
+						return false;
+				}
+			}
+
+			if (t == end)
+				return false;
+			char x = text.charAt(t);
+
+			if (c == '?') {
+				if (x == '/')
+					return false;
+			} else if (c == '[') {
+				int close = pattern.indexOf(']', p + 2);
+				if (close < 0) {
+					// Not a class, match '[' literally
+					if (x != '[')
+						return false;
+				} else {
+					if (!inClass(pattern, p + 1, close, x))
+						return false;
+					p = close;
+				}
+			} else if (c != x) {
+				return false;
+			}
+
+			p++;
+			t++;
+		}
+		return t == end;
+	}
+
+	/**
+	 * Checks whether a character belongs to a class such as <code>[abc]</code>, <code>[a-z]</code> or <code>[!abc]</code>.
+	 *
+	 * @param pattern the pattern
+	 * @param from the position following '['
+	 * @param to the position of ']'
+	 * @param c the character to check
+	 * @return true if the character belongs to the class, false otherwise
+	 */
+	private static boolean inClass(String pattern, int from, int to, char c) {
+		boolean negate = pattern.charAt(from) == '!' || pattern.charAt(from) == '^';
+		if (negate)
+			from++;
+
+		boolean found = false;
+		for (int i = from; i < to; i++) {
+			char low = pattern.charAt(i);
+			if (i + 2 < to && pattern.charAt(i + 1) == '-') {
+				if (c >= low && c <= pattern.charAt(i + 2))
+					found = true;
+				i += 2;
+			} else if (c == low) {
+				found = true;
+			}
+		}
+		return found != negate && c != '/';
+	}
+}
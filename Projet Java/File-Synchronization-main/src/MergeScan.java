@@ -0,0 +1,211 @@
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compares a source and a target directory as two streams of documents sorted in {@link Doc#PATH_ORDER}.<br/>
+ * Both streams are read in the same order and joined on the relative path, one document at a time,
+ * so the differences are found while the directories are still being walked and nothing is held
+ * but the heads of both streams. Ignored documents are never part of the result.<br/>
+ * The source can be compared to several targets at once: the source is then read only once,
+ * and each relative path is compared to every target, see {@link #advance()}.
+ */
+public class MergeScan {
+
+	/**
+	 * Kind of difference found for a relative path.
+	 */
+	public enum Change {
+		// Only in the source
+		ADDED,
+		// In both, with a different date or size
+		MODIFIED,
+		// Only in the target
+		DELETED,
+		// In both, with the same date and size
+		UNCHANGED
+	}
+
+	// Documents of the source directory and of each target directory
+	private final Iterator<Doc> source;
+	private final List<Iterator<Doc>> targets;
+
+	// Ignored files
+	private final IgnoreMatcher matcher;
+
+	// Next document of each stream, or null once the stream is read
+	private Doc nextSource;
+	private final Doc[] nextTargets;
+
+	// Documents compared by the last call to advance, null on the side where the path is missing,
+	// and the kind of difference found for each target, null if the path is in neither the source nor the target
+	private Doc sourceDoc;
+	private final Doc[] targetDocs;
+	private final Change[] kinds;
+
+	// Documents read, and differences found
+	private long scanned = 0;
+	private long changes = 0;
+
+	/**
+	 * Creates a comparison of the given streams.
+	 *
+	 * @param source the documents of the source directory, sorted in {@link Doc#PATH_ORDER}
+	 * @param target the documents of the target directory, sorted in {@link Doc#PATH_ORDER}
+	 * @param matcher the ignored files
+	 */
+	public MergeScan(Iterator<Doc> source, Iterator<Doc> target, IgnoreMatcher matcher) {
+		this(source, List.of(target), matcher);
+	}
+
+	/**
+	 * Creates a comparison of a source stream with several target streams.
+	 *
+	 * @param source the documents of the source directory, sorted in {@link Doc#PATH_ORDER}
+	 * @param targets the documents of each target directory, sorted in {@link Doc#PATH_ORDER}
+	 * @param matcher the ignored files
+	 */
+	public MergeScan(Iterator<Doc> source, List<Iterator<Doc>> targets, IgnoreMatcher matcher) {
+		this.source = source;
+		this.targets = targets;
+		this.matcher = matcher;
+		this.nextSource = read(source);
+		this.nextTargets = new Doc[targets.size()];
+		this.targetDocs = new Doc[targets.size()];
+		this.kinds = new Change[targets.size()];
+		for (int i = 0; i < nextTargets.length; i++) {
+			nextTargets[i] = read(targets.get(i));
+		}
+	}
+
+	/**
+	 * Reads the next document of a stream that is not ignored.
+	 *
+	 * @param docs the stream
+	 * @return the document, or null at the end of the stream
+	 */
+	private Doc read(Iterator<Doc> docs) {
+		while (docs.hasNext()) {
+			Doc doc = docs.next();
+			scanned++;
+			if (!doc.isIgnored(matcher))
+				return doc;
+		}
+		return null;
+	}
+
+	/**
+	 * Compares the next relative path found in either stream.<br/>
+	 * The documents compared are then returned by {@link #getSource()} and {@link #getTarget()}.
+	 * This method is meant for a comparison with a single target, see {@link #advance()} otherwise.
+	 *
+	 * @return the kind of difference, or null once both streams are read
+	 */
+	public Change next() {
+		return advance() ? kinds[0] : null;
+	}
+
+	/**
+	 * Compares the next relative path found in any stream with every target.<br/>
+	 * The documents compared are then returned by {@link #getSource()} and {@link #getTarget(int)},
+	 * and the kind of difference for each target by {@link #getChange(int)}.
+	 *
+	 * @return true if a path was compared, false once every stream is read
+	 */
+	public boolean advance() {
+		String name = nextSource == null ? null : nextSource.name;
+		for (Doc doc : nextTargets) {
+			if (doc != null && (name == null || Doc.PATH_ORDER.compare(doc.name, name) < 0))
+				name = doc.name;
+		}
+		if (name == null) {
+			sourceDoc = null;
+			for (int i = 0; i < targetDocs.length; i++) {
+				targetDocs[i] = null;
+				kinds[i] = null;
+			}
+			return false;
+		}
+
+		sourceDoc = nextSource != null && nextSource.name.equals(name) ? nextSource : null;
+		if (sourceDoc != null)
+			nextSource = read(source);
+
+		boolean changed = false;
+		for (int i = 0; i < targetDocs.length; i++) {
+			Doc targetDoc = nextTargets[i] != null && nextTargets[i].name.equals(name) ? nextTargets[i] : null;
+			if (targetDoc != null)
+				nextTargets[i] = read(targets.get(i));
+			targetDocs[i] = targetDoc;
+
+			if (targetDoc == null)
+				kinds[i] = sourceDoc == null ? null : Change.ADDED;
+			else if (sourceDoc == null)
+				kinds[i] = Change.DELETED;
+			else if (targetDoc.date != sourceDoc.date || (targetDoc.size >= 0 && sourceDoc.size >= 0 && targetDoc.size != sourceDoc.size))
+				kinds[i] = Change.MODIFIED;
+			else
+				kinds[i] = Change.UNCHANGED;
+			changed |= kinds[i] != null && kinds[i] != Change.UNCHANGED;
+		}
+
+		if (changed)
+			changes++;
+		return true;
+	}
+
+	/**
+	 * Returns the source document compared by the last call to {@link #next()}.
+	 *
+	 * @return the document, or null if the path is only in the target
+	 */
+	public Doc getSource() {
+		return sourceDoc;
+	}
+
+	/**
+	 * Returns the target document compared by the last call to {@link #next()}.
+	 *
+	 * @return the document, or null if the path is only in the source
+	 */
+	public Doc getTarget() {
+		return targetDocs[0];
+	}
+
+	/**
+	 * Returns the document of the given target compared by the last call to {@link #advance()}.
+	 *
+	 * @param target the position of the target
+	 * @return the document, or null if the path is not in the target
+	 */
+	public Doc getTarget(int target) {
+		return targetDocs[target];
+	}
+
+	/**
+	 * Returns the kind of difference found for the given target by the last call to {@link #advance()}.
+	 *
+	 * @param target the position of the target
+	 * @return the kind of difference, or null if the path is in neither the source nor the target
+	 */
+	public Change getChange(int target) {
+		return kinds[target];
+	}
+
+	/**
+	 * Returns the number of documents read from both streams so far.
+	 *
+	 * @return the number of documents
+	 */
+	public long getScanned() {
+		return scanned;
+	}
+
+	/**
+	 * Returns the number of documents to copy, update or delete found so far, in any target.
+	 *
+	 * @return the number of differences
+	 */
+	public long getChanges() {
+		return changes;
+	}
+}
@@ -0,0 +1,283 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of a synchronization job: scans, differences found, files and bytes copied,
+ * copy latency, propagation lag, queue depth and errors.<br/>
+ * Counters are {@link LongAdder} and histograms are {@link Histogram}, so recording never takes a lock and
+ * the transfer threads do not contend on the metrics. The metrics of a job live as long as the process,
+ * even if the job is restarted, and are published through JMX and by {@link MetricsServer}.
+ */
+public class Metrics implements MetricsMXBean {
+
+	// Metrics of every job, by job name
+	private static final Map<String, Metrics> ALL = new ConcurrentHashMap<>();
+
+	// Start of the process, files modified before are not counted in the propagation lag
+	private static final long START = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+	// Name of the job
+	private final String job;
+
+	// Full scans, entries listed, and duration of a scan in milliseconds
+	private final LongAdder scans = new LongAdder();
+	private final LongAdder scanEntries = new LongAdder();
+	private final Histogram scanTime = new Histogram();
+	private volatile long lastScanMillis;
+
+	// Number of files to copy, update and delete found by the last scan, and transfers not run yet
+	private volatile long lastDiffSize;
+	private final AtomicLong queueDepth = new AtomicLong();
+
+	// Files and bytes transferred
+	private final LongAdder filesCopied = new LongAdder();
+	private final LongAdder filesUpdated = new LongAdder();
+	private final LongAdder filesDeleted = new LongAdder();
+	private final LongAdder filesMoved = new LongAdder();
+	private final LongAdder bytesCopied = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	// Duration of a copy in microseconds, and time between the modification of a file and its copy in milliseconds
+	private final Histogram copyTime = new Histogram();
+	private final Histogram lag = new Histogram();
+
+	/**
+	 * Creates the metrics of a job and publishes them through JMX.
+	 *
+	 * @param job the name of the job
+	 */
+	private Metrics(String job) {
+		this.job = job;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName(job));
+		} catch (JMException e) {
+			History.getLogger().log(Level.WARNING, "Unable to publish the metrics of job '" + job + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the metrics of the given job, creating them if needed.
+	 *
+	 * @param job the name of the job
+	 * @return the metrics
+	 */
+	public static Metrics of(String job) {
+		return ALL.computeIfAbsent(job, Metrics::new);
+	}
+
+	/**
+	 * Returns the metrics of every job.
+	 *
+	 * @return the metrics by job name
+	 */
+	public static Map<String, Metrics> all() {
+		return ALL;
+	}
+
+	/**
+	 * Returns the JMX name of the metrics of a job.
+	 *
+	 * @param job the name of the job
+	 * @return the object name
+	 * @throws JMException if the name is invalid
+	 */
+	private static ObjectName objectName(String job) throws JMException {
+		return new ObjectName("filesync:type=Job,name=" + ObjectName.quote(job));
+	}
+
+	/**
+	 * Records a full scan of the source and target directories.
+	 *
+	 * @param entries the number of entries listed
+	 * @param nanos the duration of the scan in nanoseconds
+	 * @param diffSize the number of files to copy, update and delete
+	 */
+	public void scanned(long entries, long nanos, long diffSize) {
+		scans.increment();
+		scanEntries.add(entries);
+		lastScanMillis = nanos / 1_000_000;
+		scanTime.record(lastScanMillis);
+		lastDiffSize = diffSize;
+	}
+
+	/**
+	 * Records a file copied or updated in the other directory.
+	 *
+	 * @param doc the document copied, its date is the time of the modification
+	 * @param update true if an existing copy was updated
+	 * @param nanos the duration of the copy in nanoseconds
+	 */
+	public void copied(Doc doc, boolean update, long nanos) {
+		(update ? filesUpdated : filesCopied).increment();
+		if (doc.size > 0)
+			bytesCopied.add(doc.size);
+		copyTime.record(nanos / 1000);
+		if (doc.date >= START)
+			lag.record(System.currentTimeMillis() - doc.date);
+	}
+
+	/**
+	 * Records a file deleted from the other directory.
+	 */
+	public void deleted() {
+		filesDeleted.increment();
+	}
+
+	/**
+	 * Records files moved in the other directory instead of being copied.
+	 *
+	 * @param count the number of files
+	 */
+	public void moved(long count) {
+		filesMoved.add(count);
+	}
+
+	/**
+	 * Records a transfer that failed.
+	 */
+	public void failed() {
+		errors.increment();
+	}
+
+	/**
+	 * Sets the number of transfers waiting to run.
+	 *
+	 * @param depth the number of files
+	 */
+	public void setQueueDepth(long depth) {
+		queueDepth.set(depth);
+	}
+
+	/**
+	 * Returns the name of the job.
+	 *
+	 * @return the name
+	 */
+	public String getJob() {
+		return job;
+	}
+
+	/**
+	 * Returns the durations of the scans, in milliseconds.
+	 *
+	 * @return the histogram
+	 */
+	public Histogram getScanTime() {
+		return scanTime;
+	}
+
+	/**
+	 * Returns the durations of the copies, in microseconds.
+	 *
+	 * @return the histogram
+	 */
+	public Histogram getCopyTime() {
+		return copyTime;
+	}
+
+	/**
+	 * Returns the times between the modification of a file and its copy, in milliseconds.
+	 *
+	 * @return the histogram
+	 */
+	public Histogram getLag() {
+		return lag;
+	}
+
+	@Override
+	public long getScans() {
+		return scans.sum();
+	}
+
+	@Override
+	public long getScanEntries() {
+		return scanEntries.sum();
+	}
+
+	@Override
+	public long getLastScanMillis() {
+		return lastScanMillis;
+	}
+
+	@Override
+	public long getScanP99Millis() {
+		return scanTime.percentile(0.99);
+	}
+
+	@Override
+	public long getLastDiffSize() {
+		return lastDiffSize;
+	}
+
+	@Override
+	public long getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	@Override
+	public long getFilesCopied() {
+		return filesCopied.sum();
+	}
+
+	@Override
+	public long getFilesUpdated() {
+		return filesUpdated.sum();
+	}
+
+	@Override
+	public long getFilesDeleted() {
+		return filesDeleted.sum();
+	}
+
+	@Override
+	public long getFilesMoved() {
+		return filesMoved.sum();
+	}
+
+	@Override
+	public long getBytesCopied() {
+		return bytesCopied.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public long getCopyP50Micros() {
+		return copyTime.percentile(0.5);
+	}
+
+	@Override
+	public long getCopyP99Micros() {
+		return copyTime.percentile(0.99);
+	}
+
+	@Override
+	public long getCopyMaxMicros() {
+		return copyTime.getMax();
+	}
+
+	@Override
+	public long getLagP50Millis() {
+		return lag.percentile(0.5);
+	}
+
+	@Override
+	public long getLagP99Millis() {
+		return lag.percentile(0.99);
+	}
+
+	@Override
+	public long getLagMaxMillis() {
+		return lag.getMax();
+	}
+}
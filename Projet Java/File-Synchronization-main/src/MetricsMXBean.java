@@ -0,0 +1,42 @@
+/**
+ * Management interface of the {@link Metrics} of a synchronization job, published through JMX
+ * under the name "filesync:type=Job,name=&lt;job&gt;".
+ */
+public interface MetricsMXBean {
+
+	long getScans();
+
+	long getScanEntries();
+
+	long getLastScanMillis();
+
+	long getScanP99Millis();
+
+	long getLastDiffSize();
+
+	long getQueueDepth();
+
+	long getFilesCopied();
+
+	long getFilesUpdated();
+
+	long getFilesDeleted();
+
+	long getFilesMoved();
+
+	long getBytesCopied();
+
+	long getErrors();
+
+	long getCopyP50Micros();
+
+	long getCopyP99Micros();
+
+	long getCopyMaxMicros();
+
+	long getLagP50Millis();
+
+	long getLagP99Millis();
+
+	long getLagMaxMillis();
+}
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the {@link Metrics} of every job in the Prometheus text format on "http://localhost:&lt;port&gt;/metrics".<br/>
+ * The server only listens on the loopback interface and runs on a single daemon thread.
+ */
+public class MetricsServer {
+
+	// Quantiles published for each histogram
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	// Server answering the requests
+	private final HttpServer server;
+
+	/**
+	 * Starts a server on the given port of the loopback interface.
+	 *
+	 * @param port the port to listen on
+	 * @throws IOException if the port cannot be bound
+	 */
+	public MetricsServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", this::handle);
+		server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.start();
+		History.getLogger().log(Level.INFO, "Metrics published on http://localhost:" + server.getAddress().getPort() + "/metrics");
+	}
+
+	/**
+	 * Starts the server on the port set by the "metrics.port" property.
+	 *
+	 * @param config the configuration
+	 * @return the server, or null if the property is not set or the port cannot be bound
+	 */
+	public static MetricsServer start(Config config) {
+		int port = config.getInt("metrics.port", 0);
+		if (port <= 0)
+			return null;
+
+		try {
+			return new MetricsServer(port);
+		} catch (IOException e) {
+			History.getLogger().log(Level.WARNING, "Unable to publish the metrics on port " + port + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Answers a request with the current metrics.
+	 *
+	 * @param exchange the request
+	 * @throws IOException if the response cannot be written
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] body = render().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Writes the metrics of every job in the Prometheus text format.
+	 *
+	 * @return the text of the metrics
+	 */
+	static String render() {
+		StringBuilder out = new StringBuilder(4096);
+		Map<String, Metrics> all = Metrics.all();
+
+		counter(out, "filesync_scans_total", "Full scans of the source and target directories", all, Metrics::getScans);
+		counter(out, "filesync_scan_entries_total", "Entries listed by the full scans", all, Metrics::getScanEntries);
+		summary(out, "filesync_scan_duration_seconds", "Duration of a full scan", all, Metrics::getScanTime, 1e-3);
+		gauge(out, "filesync_diff_size", "Files to copy, update or delete found by the last scan", all, Metrics::getLastDiffSize);
+		gauge(out, "filesync_queue_depth", "Transfers waiting to run", all, Metrics::getQueueDepth);
+		counter(out, "filesync_files_copied_total", "New files copied", all, Metrics::getFilesCopied);
+		counter(out, "filesync_files_updated_total", "Modified files updated", all, Metrics::getFilesUpdated);
+		counter(out, "filesync_files_deleted_total", "Files deleted", all, Metrics::getFilesDeleted);
+		counter(out, "filesync_files_moved_total", "Files moved instead of copied", all, Metrics::getFilesMoved);
+		counter(out, "filesync_bytes_copied_total", "Bytes of the files copied or updated", all, Metrics::getBytesCopied);
+		counter(out, "filesync_errors_total", "Transfers that failed", all, Metrics::getErrors);
+		summary(out, "filesync_copy_duration_seconds", "Duration of a copy", all, Metrics::getCopyTime, 1e-6);
+		summary(out, "filesync_propagation_lag_seconds", "Time between the modification of a file and its copy", all, Metrics::getLag, 1e-3);
+
+		out.append("# HELP filesync_delta_bytes_saved_total Bytes reused by delta updates\n");
+		out.append("# TYPE filesync_delta_bytes_saved_total counter\n");
+		out.append("filesync_delta_bytes_saved_total ").append(DeltaCopier.getBytesSaved()).append('\n');
+
+		Throttle throttle = Throttle.get();
+		header(out, "filesync_throttle_bytes_per_second", "Limit of the bytes written per second, 0 if unlimited", "gauge");
+		out.append("filesync_throttle_bytes_per_second ").append(throttle.getBytesPerSecond()).append('\n');
+		header(out, "filesync_throttle_ops_per_second", "Limit of the files copied, moved or deleted per second, 0 if unlimited", "gauge");
+		out.append("filesync_throttle_ops_per_second ").append(throttle.getOpsPerSecond()).append('\n');
+		header(out, "filesync_throttle_wait_seconds_total", "Time the transfers waited for the limits", "counter");
+		out.append("filesync_throttle_wait_seconds_total ").append(format(throttle.getWaitMillis() * 1e-3)).append('\n');
+		return out.toString();
+	}
+
+	/**
+	 * Writes a counter for every job.
+	 */
+	private static void counter(StringBuilder out, String name, String help, Map<String, Metrics> all, ToLongFunction<Metrics> value) {
+		header(out, name, help, "counter");
+		for (Metrics metrics : all.values()) {
+			out.append(name).append(label(metrics)).append(' ').append(value.applyAsLong(metrics)).append('\n');
+		}
+	}
+
+	/**
+	 * Writes a gauge for every job.
+	 */
+	private static void gauge(StringBuilder out, String name, String help, Map<String, Metrics> all, ToLongFunction<Metrics> value) {
+		header(out, name, help, "gauge");
+		for (Metrics metrics : all.values()) {
+			out.append(name).append(label(metrics)).append(' ').append(value.applyAsLong(metrics)).append('\n');
+		}
+	}
+
+	/**
+	 * Writes the quantiles, sum and count of a histogram for every job, converted with the given unit.
+	 */
+	private static void summary(StringBuilder out, String name, String help, Map<String, Metrics> all, Function<Metrics, Histogram> source, double unit) {
+		header(out, name, help, "summary");
+		for (Metrics metrics : all.values()) {
+			Histogram histogram = source.apply(metrics);
+			String job = escape(metrics.getJob());
+			for (double quantile : QUANTILES) {
+				out.append(name).append("{job=\"").append(job).append("\",quantile=\"").append(quantile).append("\"} ")
+						.append(format(histogram.percentile(quantile) * unit)).append('\n');
+			}
+			out.append(name).append("_sum").append(label(metrics)).append(' ').append(format(histogram.getSum() * unit)).append('\n');
+			out.append(name).append("_count").append(label(metrics)).append(' ').append(histogram.getCount()).append('\n');
+		}
+	}
+
+	/**
+	 * Writes the help and type lines of a metric.
+	 */
+	private static void header(StringBuilder out, String name, String help, String type) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Returns the job label of a metric.
+	 */
+	private static String label(Metrics metrics) {
+		return "{job=\"" + escape(metrics.getJob()) + "\"}";
+	}
+
+	/**
+	 * Escapes a label value.
+	 */
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Formats a sample value.
+	 */
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.6f", value);
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	public void stop() {
+		server.stop(0);
+	}
+}
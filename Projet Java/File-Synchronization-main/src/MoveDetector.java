@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Finds the files of a job that were moved or renamed in the source directory, and moves them in the target directory
+ * instead of copying them again and deleting their old copy.<br/>
+ * A deleted file is paired with an added file of the same size, date and content, preferably with the same file name.
+ * The content is compared with the recorded hash of the deleted file or a digest of its copy in the target directory,
+ * and a file whose digest cannot be computed is only paired with a file of the same name. The paired paths are then grouped by the folder they were moved from:
+ * when most of the files of a folder went to the same new folder, and the old folder is gone from the source,
+ * the whole folder is moved at once, so renaming a large tree only costs one rename.
+ * Otherwise each paired file is moved on its own.
+ */
+public class MoveDetector {
+
+	// Candidates whose content is compared to each deleted file
+	private static final int MAX_CANDIDATES = 8;
+
+	/**
+	 * Size and date of a file, the key on which added and deleted files are paired.
+	 */
+	private record Signature(long size, long date) {
+	}
+
+	/**
+	 * Files paired together, moved from the same old prefix to the same new prefix.
+	 */
+	private static class Group {
+
+		// Old and new path of the moved folder, or of the file if it was renamed
+		final String from;
+		final String to;
+
+		// Added files, by the name of the deleted file they are paired with
+		final Map<String, Doc> pairs = new LinkedHashMap<>();
+
+		Group(String from, String to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	// Job whose target directory is updated
+	private final SyncJob job;
+
+	// Last synchronized state of the target directory
+	private final SnapshotIndex index;
+
+	// Digests used to compare the content of the paired files
+	private final DigestStore digests;
+
+	/**
+	 * Creates a detector for the given job.
+	 *
+	 * @param job the job whose moves are detected
+	 * @param digests the digests used to compare the content of the paired files, or null to compute them for this detector only
+	 */
+	public MoveDetector(SyncJob job, DigestStore digests) {
+		this.job = job;
+		this.index = job.getIndex();
+		this.digests = digests != null ? digests : new DigestStore();
+	}
+
+	/**
+	 * Moves in the target directory the files found both added and deleted, and removes them from both collections.<br/>
+	 * The deleted files must be recorded in the snapshot index. The files left are copied and deleted as usual.
+	 *
+	 * @param added the files missing from the target directory
+	 * @param deleted the files missing from the source directory
+	 * @return the number of files moved
+	 */
+	public int apply(Collection<Doc> added, Collection<Doc> deleted) {
+		if (added.isEmpty() || deleted.isEmpty())
+			return 0;
+
+		Map<Signature, List<Doc>> candidates = new HashMap<>();
+		Map<String, Doc> byName = new HashMap<>();
+		for (Doc doc : added) {
+			candidates.computeIfAbsent(new Signature(doc.size, doc.date), key -> new ArrayList<>()).add(doc);
+			byName.put(doc.name, doc);
+		}
+
+		// Pair the files and group them by moved folder
+		Map<String, Group> groups = new HashMap<>();
+		for (Doc old : deleted) {
+			List<Doc> list = candidates.get(new Signature(old.size, old.date));
+			Doc match = list == null ? null : pick(old, list);
+			if (match == null)
+				continue;
+
+			String[] prefixes = prefixes(old.name, match.name);
+			groups.computeIfAbsent(prefixes[0] + '\n' + prefixes[1], key -> new Group(prefixes[0], prefixes[1])).pairs.put(old.name, match);
+		}
+		if (groups.isEmpty())
+			return 0;
+
+		// The largest folders first, a file moved with its folder is not moved again
+		List<Group> sorted = new ArrayList<>(groups.values());
+		sorted.sort((a, b) -> b.pairs.size() - a.pairs.size());
+		Set<String> gone = new HashSet<>();
+		Set<String> moved = new HashSet<>();
+		for (Group group : sorted) {
+			if (!group.from.equals(group.pairs.keySet().iterator().next()) && moveFolder(group, byName, gone, moved))
+				continue;
+
+			for (Map.Entry<String, Doc> pair : group.pairs.entrySet()) {
+				if (!gone.contains(pair.getKey()) && moveFile(pair.getKey(), pair.getValue())) {
+					gone.add(pair.getKey());
+					moved.add(pair.getValue().name);
+				}
+			}
+		}
+
+		added.removeIf(doc -> moved.contains(doc.name));
+		deleted.removeIf(doc -> gone.contains(doc.name));
+		job.getMetrics().moved(moved.size());
+		return moved.size();
+	}
+
+	/**
+	 * Removes from the candidates the added file paired with a deleted file.<br/>
+	 * The candidate whose path ends like the path of the deleted file is preferred, so the files of a folder moved
+	 * with its content are paired together even when files of other folders have the same name, size and date.
+	 *
+	 * @param old the deleted file
+	 * @param candidates the added files of the same size and date
+	 * @return the added file, or null if none has the same content
+	 */
+	private Doc pick(Doc old, List<Doc> candidates) {
+		Set<Doc> rejected = new HashSet<>();
+		for (int checked = 0; checked < MAX_CANDIDATES && rejected.size() < candidates.size(); checked++) {
+			int best = -1;
+			int bestLength = -1;
+			for (int i = 0; i < candidates.size(); i++) {
+				Doc doc = candidates.get(i);
+				int length = commonSuffix(old.name, doc.name);
+				if (length > bestLength && !rejected.contains(doc)) {
+					best = i;
+					bestLength = length;
+				}
+			}
+
+			Doc doc = candidates.get(best);
+			if (sameContent(old.name, index.getHash(old.name), doc)) {
+				candidates.remove(best);
+				return doc;
+			}
+			rejected.add(doc);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of characters two paths end with.
+	 *
+	 * @param a the first path
+	 * @param b the second path
+	 * @return the length of the common suffix
+	 */
+	private static int commonSuffix(String a, String b) {
+		int length = 0;
+		while (length < a.length() && length < b.length() && a.charAt(a.length() - 1 - length) == b.charAt(b.length() - 1 - length)) {
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Checks whether a file of the target directory and an added file of the same size and date have the same content.
+	 * If a digest cannot be computed, they are only considered the same if they have the same file name.
+	 *
+	 * @param name the path of the file in the target directory
+	 * @param hash the recorded content hash of the file, or 0 if unknown
+	 * @param doc the added file, in the source directory
+	 * @return true if the files have the same content, false otherwise
+	 */
+	private boolean sameContent(String name, long hash, Doc doc) {
+		if (hash == 0)
+			hash = digests.digest(Path.of(job.getTarget() + name));
+		long digest = hash == 0 ? 0 : digests.digest(Path.of(job.getSource() + doc.name));
+		if (hash == 0 || digest == 0)
+			return name.substring(name.lastIndexOf('/') + 1).equals(doc.name.substring(doc.name.lastIndexOf('/') + 1));
+		return hash == digest;
+	}
+
+	/**
+	 * Returns the old and new paths of the folder moved by a pair of files, without the path components they end with.
+	 * If the file name changed, or if the file was moved from or to the root, they are the paths of the files.
+	 *
+	 * @param from the old path of the file
+	 * @param to the new path of the file
+	 * @return the old and new paths
+	 */
+	static String[] prefixes(String from, String to) {
+		int i = from.length();
+		int j = to.length();
+		while (true) {
+			int a = from.lastIndexOf('/', i - 1);
+			int b = to.lastIndexOf('/', j - 1);
+			if (a < 0 || b < 0 || i - a != j - b || !from.regionMatches(a + 1, to, b + 1, i - a - 1))
+				break;
+			i = a;
+			j = b;
+		}
+		return new String[] { from.substring(0, i), to.substring(0, j) };
+	}
+
+	/**
+	 * Moves a whole folder in the target directory, if most of its files were moved to the same new folder.<br/>
+	 * Each file of the folder is then checked at its new place, whatever file it was paired with: it is kept if it matches
+	 * the added file found there, deleted if no file was added there, and otherwise left for the added file to be copied over it.
+	 *
+	 * @param group the files moved from the folder
+	 * @param byName the added files, by path
+	 * @param gone the paths of the deleted files handled, updated
+	 * @param moved the paths of the added files handled, updated
+	 * @return true if the folder was moved, false if its files should be moved one at a time
+	 */
+	private boolean moveFolder(Group group, Map<String, Doc> byName, Set<String> gone, Set<String> moved) {
+		String from = group.from;
+		String to = group.to;
+		if (to.startsWith(from + "/") || from.startsWith(to + "/"))
+			return false;
+
+		List<String> names = index.children(from);
+		long paired = group.pairs.keySet().stream().filter(name -> !gone.contains(name)).count();
+		if (paired * 2 <= names.size() || names.stream().anyMatch(gone::contains))
+			return false;
+
+		Path source = Path.of(job.getSource() + from);
+		Path oldDir = Path.of(job.getTarget() + from);
+		Path newDir = Path.of(job.getTarget() + to);
+		if (Files.exists(source, LinkOption.NOFOLLOW_LINKS) || Files.exists(newDir, LinkOption.NOFOLLOW_LINKS)
+				|| !Files.isDirectory(oldDir, LinkOption.NOFOLLOW_LINKS))
+			return false;
+
+		try {
+			Files.createDirectories(newDir.getParent());
+			Throttle.get().operations(1);
+			Files.move(oldDir, newDir);
+		} catch (IOException e) {
+			History.getLogger().log(Level.FINE, () -> job.label() + "Unable to move folder '" + from + "' to '" + to + "': " + e.getMessage());
+			return false;
+		}
+		History.getLogger().log(Level.FINE, () -> job.label() + "Move detected from '" + from + "' to '" + to + "'. Folder moved");
+
+		for (String name : names) {
+			gone.add(name);
+			Doc old = index.get(name);
+			long hash = index.getHash(name);
+			index.remove(name);
+
+			String path = to + name.substring(from.length());
+			Doc doc = byName.get(path);
+			if (doc != null && doc.size == old.size && doc.date == old.date && sameContent(path, hash, doc)) {
+				index.put(doc, hash);
+				moved.add(doc.name);
+			} else if (doc == null) {
+				// Deleted from the source while the folder was moved
+				try {
+					Throttle.get().operations(1);
+					Files.deleteIfExists(Path.of(job.getTarget() + path));
+					History.getLogger().log(Level.FINE, () -> job.label() + "Deletion detected on '" + path + "'. File deleted");
+					job.getMetrics().deleted();
+				} catch (IOException e) {
+					History.getLogger().log(Level.SEVERE, job.label() + "Unable to delete '" + path + "': " + e.getMessage());
+					job.getMetrics().failed();
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Moves one file in the target directory.
+	 *
+	 * @param from the old path of the file
+	 * @param doc the file at its new path
+	 * @return true if the file was moved, false if it should be copied instead
+	 */
+	private boolean moveFile(String from, Doc doc) {
+		Path oldFile = Path.of(job.getTarget() + from);
+		Path newFile = Path.of(job.getTarget() + doc.name);
+		if (Files.exists(newFile, LinkOption.NOFOLLOW_LINKS) || !Files.isRegularFile(oldFile, LinkOption.NOFOLLOW_LINKS))
+			return false;
+
+		try {
+			Files.createDirectories(newFile.getParent());
+			Throttle.get().operations(1);
+			Files.move(oldFile, newFile);
+		} catch (IOException e) {
+			History.getLogger().log(Level.FINE, () -> job.label() + "Unable to move '" + from + "' to '" + doc.name + "': " + e.getMessage());
+			return false;
+		}
+		History.getLogger().log(Level.FINE, () -> job.label() + "Move detected from '" + from + "' to '" + doc.name + "'. File moved");
+
+		long hash = index.getHash(from);
+		index.remove(from);
+		index.put(doc, hash);
+		return true;
+	}
+}
@@ -0,0 +1,117 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides when a job that cannot watch its directories scans them again.<br/>
+ * The interval adapts to the directories:
+ * <ul>
+ * <li>after a scan that found changes, the next scan comes after the shortest interval, so a burst of changes is followed closely;</li>
+ * <li>after a scan that found nothing, the interval grows exponentially up to the longest interval.
+ * It doubles for a folder that stays idle, and grows more slowly for a folder that changed recently;</li>
+ * <li>the interval is never shorter than a few times the duration of the last scan, so scanning a large tree
+ * does not take more than a fraction of the time, whatever the shortest interval;</li>
+ * <li>a random jitter is added, so several jobs started together do not scan their directories at the same time.</li>
+ * </ul>
+ */
+public class PollScheduler {
+
+	// Fraction of the time the scans may take
+	private static final double MAX_LOAD = 0.25;
+
+	// Weight of the last scan in the recent activity
+	private static final double ACTIVITY_WEIGHT = 0.3;
+
+	// Shortest and longest intervals between two scans, in milliseconds
+	private final long minInterval;
+	private final long maxInterval;
+
+	// Maximum jitter, as a fraction of the interval
+	private final double jitter;
+
+	// Interval before the next scan, without jitter, in milliseconds
+	private long interval;
+
+	// Fraction of the recent scans that found changes, between 0 and 1
+	private double activity = 0;
+
+	// Time of the next scan, in milliseconds since the epoch
+	private long next = 0;
+
+	/**
+	 * Creates a scheduler with the given bounds.
+	 *
+	 * @param minInterval the shortest interval between two scans, in milliseconds
+	 * @param maxInterval the longest interval between two scans, in milliseconds
+	 * @param jitter the maximum jitter, as a fraction of the interval, between 0 and 1
+	 */
+	public PollScheduler(long minInterval, long maxInterval, double jitter) {
+		this.minInterval = Math.max(10, minInterval);
+		this.maxInterval = Math.max(this.minInterval, maxInterval);
+		this.jitter = Math.min(1, Math.max(0, jitter));
+		this.interval = this.minInterval;
+	}
+
+	/**
+	 * Creates a scheduler with the bounds found in the configuration file.<br/>
+	 * The bounds are set by the properties "job.&lt;name&gt;.poll.min", "job.&lt;name&gt;.poll.max" and "job.&lt;name&gt;.poll.jitter",
+	 * or by "poll.min", "poll.max" and "poll.jitter" for every job: 1 s, 5 min and 0.2 by default.
+	 *
+	 * @param config the configuration
+	 * @param name the name of the job
+	 * @return the scheduler
+	 */
+	public static PollScheduler fromConfig(Config config, String name) {
+		String prefix = "job." + name + ".";
+		return new PollScheduler(config.getLong(prefix + "poll.min", config.getLong("poll.min", 1000)),
+				config.getLong(prefix + "poll.max", config.getLong("poll.max", 300_000)),
+				config.getDouble(prefix + "poll.jitter", config.getDouble("poll.jitter", 0.2)));
+	}
+
+	/**
+	 * Checks whether the next scan is due.
+	 *
+	 * @return true if the directories should be scanned now, false otherwise
+	 */
+	public boolean isDue() {
+		return System.currentTimeMillis() >= next;
+	}
+
+	/**
+	 * Records the result of a scan and schedules the next one.
+	 *
+	 * @param millis the duration of the scan, in milliseconds
+	 * @param changes the number of differences found by the scan
+	 */
+	public void scanned(long millis, long changes) {
+		activity = (1 - ACTIVITY_WEIGHT) * activity + ACTIVITY_WEIGHT * (changes > 0 ? 1 : 0);
+
+		if (changes > 0)
+			interval = minInterval;
+		else
+			interval = Math.min(maxInterval, (long) (interval * (2 - activity)));
+
+		// Leave the directories alone most of the time, however short the interval is
+		long floor = (long) (millis * (1 - MAX_LOAD) / MAX_LOAD);
+		interval = Math.min(Math.max(interval, floor), Math.max(maxInterval, floor));
+
+		double spread = jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+		next = System.currentTimeMillis() + (long) (interval * (1 + spread));
+	}
+
+	/**
+	 * Forgets the past scans, so the next scan is due at once and followed closely.
+	 */
+	public void reset() {
+		interval = minInterval;
+		activity = 0;
+		next = 0;
+	}
+
+	/**
+	 * Returns the interval before the next scan, without jitter.
+	 *
+	 * @return the interval, in milliseconds
+	 */
+	public long getInterval() {
+		return interval;
+	}
+}
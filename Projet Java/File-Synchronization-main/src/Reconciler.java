@@ -0,0 +1,347 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Synchronizes the source and target directories of a job in both directions.<br/>
+ * The snapshot index of the job is the baseline: the size and date of every file, on both sides, at the end of the last synchronization.
+ * Each side is compared to the baseline rather than to the other side, so every path is classified as unchanged,
+ * changed on the source, changed on the target, or changed on both sides. Only the changed side is copied over the other one.
+ * When both sides changed, the conflict is solved by the {@link Rule} of the job.<br/>
+ * Since a path can be reconciled alone, the watchers of both sides only reconcile the paths they report.
+ */
+public class Reconciler {
+
+	/**
+	 * Rule applied when a file changed on both sides since the last synchronization.
+	 */
+	public enum Rule {
+		// The most recently modified version is kept, a modification wins over a deletion
+		NEWEST,
+		// The source version is kept, the target version is renamed next to it on both sides
+		KEEP_BOTH,
+		// The source version is kept, the target is overwritten
+		SOURCE;
+
+		/**
+		 * Returns the rule with the given name, such as "newest", "keep-both" or "source".
+		 *
+		 * @param name the name of the rule, or null
+		 * @return the rule, or {@link #NEWEST} if the name is unknown
+		 */
+		public static Rule parse(String name) {
+			if (name != null) {
+				for (Rule rule : values()) {
+					if (rule.name().replace('_', '-').equalsIgnoreCase(name.trim()))
+						return rule;
+				}
+				History.getLogger().log(Level.WARNING, "Unknown conflict rule '" + name + "', using 'newest'");
+			}
+			return NEWEST;
+		}
+	}
+
+	// Job synchronized in both directions
+	private final SyncJob job;
+
+	// Rule solving the conflicts
+	private final Rule rule;
+
+	// Digests telling apart the files changed on both sides with the same content
+	private final DigestStore digests = new DigestStore();
+
+	/**
+	 * Creates a reconciler for the given job.
+	 *
+	 * @param job the job synchronized in both directions
+	 * @param rule the rule solving the conflicts
+	 */
+	public Reconciler(SyncJob job, Rule rule) {
+		this.job = job;
+		this.rule = rule;
+	}
+
+	/**
+	 * Returns the paths that changed on either side since the last synchronization.
+	 *
+	 * @param source the documents of the source directory
+	 * @param target the documents of the target directory
+	 * @return the relative paths to reconcile
+	 */
+	public List<String> changes(List<Doc> source, List<Doc> target) {
+		Map<String, Doc> baseline = new HashMap<>();
+		for (Doc doc : job.getIndex().docs()) {
+			baseline.put(doc.name, doc);
+		}
+
+		Set<String> names = new LinkedHashSet<>();
+		Set<String> seen = new HashSet<>(source.size() + target.size());
+		for (List<Doc> side : List.of(source, target)) {
+			for (Doc doc : side) {
+				if (isTemporary(doc.name) || doc.isIgnored(job.getMatcher()))
+					continue;
+				seen.add(doc.name);
+				if (changed(doc, baseline.get(doc.name)))
+					names.add(doc.name);
+			}
+		}
+
+		// Files deleted on one side or both
+		for (String name : baseline.keySet()) {
+			if (!seen.contains(name))
+				names.add(name);
+		}
+		return new ArrayList<>(names);
+	}
+
+	/**
+	 * Reconciles a path reported by a watcher.<br/>
+	 * If it is not a file on either side and the baseline holds files under it, it is a folder
+	 * that was deleted or moved, and each of these files is reconciled.
+	 *
+	 * @param name the relative path
+	 */
+	public void reconcileTree(String name) {
+		if (job.getIndex().get(name) == null && !new File(job.getSource() + name).isFile() && !new File(job.getTarget() + name).isFile()) {
+			for (String child : job.getIndex().children(name)) {
+				reconcile(child);
+			}
+			return;
+		}
+		reconcile(name);
+	}
+
+	/**
+	 * Brings a file to the same state on both sides, according to what changed since the last synchronization.
+	 *
+	 * @param name the relative path of the file
+	 */
+	public void reconcile(String name) {
+		if (isTemporary(name) || job.getMatcher().isIgnored(name, false))
+			return;
+
+		SnapshotIndex index = job.getIndex();
+		Doc base = index.get(name);
+		Doc left = stat(job.getSource(), name);
+		Doc right = stat(job.getTarget(), name);
+
+		boolean leftChanged = changed(left, base);
+		boolean rightChanged = changed(right, base);
+
+		if (!leftChanged && !rightChanged)
+			return;
+
+		// Files still being written are left as they are, the next scan or their watcher comes back to them
+		long quiet = job.getQuietPeriod();
+		if (leftChanged && left != null && !Debouncer.isSettled(left.date, quiet)) {
+			job.defer(job.getSource(), name);
+			return;
+		}
+		if (rightChanged && right != null && !Debouncer.isSettled(right.date, quiet)) {
+			job.defer(job.getTarget(), name);
+			return;
+		}
+
+		if (!rightChanged) {
+			propagate(name, left, job.getSource(), job.getTarget());
+		} else if (!leftChanged) {
+			propagate(name, right, job.getTarget(), job.getSource());
+		} else if (left == null && right == null) {
+			// Deleted on both sides
+			index.remove(name);
+		} else if (left != null && right != null && same(left, right)) {
+			// Changed the same way on both sides
+			index.put(left);
+		} else {
+			resolve(name, left, right);
+		}
+	}
+
+	/**
+	 * Applies the conflict rule to a file changed on both sides.
+	 *
+	 * @param name the relative path of the file
+	 * @param left the source version, or null if it was deleted
+	 * @param right the target version, or null if it was deleted
+	 */
+	private void resolve(String name, Doc left, Doc right) {
+		String source = job.getSource();
+		String target = job.getTarget();
+
+		if (rule == Rule.SOURCE) {
+			History.getLogger().log(Level.WARNING, job.label() + "Conflict on '" + name + "'. Source version kept");
+			propagate(name, left, source, target);
+		} else if (left == null || right == null) {
+			// A modification always wins over a deletion
+			History.getLogger().log(Level.WARNING, job.label() + "Conflict on '" + name + "'. Modified version kept");
+			if (left != null)
+				propagate(name, left, source, target);
+			else
+				propagate(name, right, target, source);
+		} else if (rule == Rule.NEWEST) {
+			History.getLogger().log(Level.WARNING, job.label() + "Conflict on '" + name + "'. Newest version kept");
+			if (right.date > left.date)
+				propagate(name, right, target, source);
+			else
+				propagate(name, left, source, target);
+		} else {
+			// Keep the target version under another name, then copy it back to the source
+			String copy = conflictName(name, right.date);
+			try {
+				FileCopier.replace(Path.of(target + name), Path.of(target + copy));
+			} catch (IOException e) {
+				History.getLogger().log(Level.SEVERE, job.label() + "Unable to rename '" + name + "': " + e.getMessage());
+				return;
+			}
+			History.getLogger().log(Level.WARNING, job.label() + "Conflict on '" + name + "'. Both versions kept, target version saved as '" + copy + "'");
+			propagate(copy, new Doc(copy, right.date, right.size), target, source);
+			propagate(name, left, source, target);
+		}
+	}
+
+	/**
+	 * Copies a file from one side to the other, or deletes it from the other side, and records the result in the baseline.
+	 *
+	 * @param name the relative path of the file
+	 * @param doc the current state of the file, or null if it was deleted
+	 * @param from the directory where the file changed
+	 * @param to the directory to update
+	 */
+	private void propagate(String name, Doc doc, String from, String to) {
+		SnapshotIndex index = job.getIndex();
+		String side = to.equals(job.getTarget()) ? "" : " on the target";
+		Throttle.get().operations(1);
+
+		if (doc == null) {
+			History.getLogger().log(Level.FINE, () -> job.label() + "Deletion detected on '" + name + "'" + side + ". File deleted");
+			Doc deleted = new Doc(name, 0);
+			if (deleted.deleteFrom(to)) {
+				index.remove(name);
+				prune(name, from, to);
+				job.getMetrics().deleted();
+			} else {
+				job.getMetrics().failed();
+			}
+			return;
+		}
+
+		History.getLogger().log(Level.FINE, () -> job.label() + "Change detected on '" + name + "'" + side + ". File synchronized");
+		long start = System.nanoTime();
+		boolean update = new File(to + name).isFile();
+		if (update ? doc.updateIn(from, to) : doc.saveTo(from, to)) {
+			index.put(doc);
+			job.getMetrics().copied(doc, update, System.nanoTime() - start);
+		} else {
+			job.getMetrics().failed();
+		}
+	}
+
+	/**
+	 * Deletes the parent folders of a deleted file that became empty and no longer exist on the other side.
+	 *
+	 * @param name the relative path of the deleted file
+	 * @param from the directory where the file was deleted
+	 * @param to the directory the file was just deleted from
+	 */
+	private static void prune(String name, String from, String to) {
+		for (int slash = name.lastIndexOf('/'); slash > 0; slash = name.lastIndexOf('/', slash - 1)) {
+			String parent = name.substring(0, slash);
+			if (new File(from + parent).exists() || !new File(to + parent).delete())
+				return;
+		}
+	}
+
+	/**
+	 * Checks whether two versions of a file have the same content.<br/>
+	 * When only their dates differ, their content is compared and both dates are aligned on the source.
+	 *
+	 * @param left the source version
+	 * @param right the target version
+	 * @return true if both versions have the same content
+	 */
+	private boolean same(Doc left, Doc right) {
+		if (left.size != right.size)
+			return false;
+		if (left.date == right.date)
+			return true;
+
+		Path target = Path.of(job.getTarget() + right.name);
+		long hash = digests.digest(Path.of(job.getSource() + left.name));
+		if (hash == 0 || hash != digests.digest(target))
+			return false;
+
+		try {
+			Files.setLastModifiedTime(target, FileTime.fromMillis(left.date));
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks whether a file changed since the last synchronization.
+	 *
+	 * @param doc the current state of the file, or null if it does not exist
+	 * @param base the state recorded in the baseline, or null if there is none
+	 * @return true if the file was created, modified or deleted
+	 */
+	private static boolean changed(Doc doc, Doc base) {
+		if (doc == null || base == null)
+			return doc != base;
+		return doc.date != base.date || doc.size != base.size;
+	}
+
+	/**
+	 * Reads the current state of a file.
+	 *
+	 * @param dir the directory holding the file
+	 * @param name the relative path of the file
+	 * @return the file, or null if it is not a regular file
+	 */
+	private static Doc stat(String dir, String name) {
+		File file = new File(dir + name);
+		if (!file.isFile())
+			return null;
+		return new Doc(name, file.lastModified(), file.length());
+	}
+
+	/**
+	 * Checks whether a path is a temporary file written during a copy, see {@link FileCopier}.
+	 *
+	 * @param name the relative path
+	 * @return true if the file is temporary
+	 */
+	private static boolean isTemporary(String name) {
+		int slash = name.lastIndexOf('/');
+		return name.endsWith(FileCopier.TMP_SUFFIX) && name.startsWith(".", slash + 1);
+	}
+
+	/**
+	 * Returns the name of the copy kept for the target version of a conflicting file.
+	 *
+	 * @param name the relative path of the file
+	 * @param date the last modification date of the target version
+	 * @return the name with the date inserted before the extension
+	 */
+	private static String conflictName(String name, long date) {
+		String stamp = " (conflict " + new SimpleDateFormat("yyyy-MM-dd HHmmss", Locale.ROOT).format(new Date(date)) + ")";
+		int slash = name.lastIndexOf('/');
+		int dot = name.lastIndexOf('.');
+		if (dot <= slash + 1)
+			return name + stamp;
+		return name.substring(0, dot) + stamp + name.substring(dot);
+	}
+}
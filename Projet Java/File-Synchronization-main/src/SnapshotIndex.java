@@ -0,0 +1,544 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+
+/**
+ * Persistent index of the last synchronized state of a target directory.<br/>
+ * The index is a binary journal stored next to the configuration file: a header naming the source and target
+ * directories, followed by one record per copied or deleted document.
+ * It is loaded with a memory-mapped read at startup, then every change is appended to the journal,
+ * so a restart does not need to walk the target directory again.<br/>
+ * The journal is compacted when it holds too many outdated records.<br/>
+ * The index also records the folders of the source directory found identical to the index, with their date,
+ * so an incremental scan can read their listing from the index instead of the disk, see {@link #listing(String, long, List, List)}.<br/>
+ * The index can be updated from several transfer threads at the same time.
+ * Documents are kept in a compact {@link SnapshotStore} and iterated in {@link Doc#PATH_ORDER},
+ * so the index can be compared to a walk of the source directory as a stream.
+ */
+public class SnapshotIndex implements Closeable {
+
+	// Journal format
+	private static final int MAGIC = 0x53594E43;
+	private static final int VERSION = 1;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte LISTED = 3;
+
+	// Folders modified more recently are not recorded, a change in the same second may not change their date
+	private static final long RACY_WINDOW = 2000;
+
+	// Location of the journal
+	private final Path file;
+
+	// Directories the index was built for, with '/' separators
+	private final String source;
+	private final String target;
+
+	// Last synchronized state, by relative path
+	private final SnapshotStore docs = new SnapshotStore();
+
+	// True once the index describes the content of the target directory
+	private boolean warm = false;
+
+	// Stream appending records to the journal, and the number of records it holds
+	private DataOutputStream journal;
+	private int records;
+
+	/**
+	 * Opens the index stored in the given file for the given pair of directories.<br/>
+	 * If the file does not exist, is corrupted or was built for other directories, the index starts empty.
+	 *
+	 * @param name the name of the index file
+	 * @param source the source directory
+	 * @param target the target directory
+	 */
+	public SnapshotIndex(String name, String source, String target) {
+		this.file = Path.of(name);
+		this.source = source;
+		this.target = target;
+
+		records = load();
+		if (!warm || records < 0 || isOutdated()) {
+			// Start a fresh journal, or drop the outdated and corrupted records
+			rewrite();
+		} else {
+			openJournal();
+		}
+	}
+
+	/**
+	 * Loads the journal into memory.
+	 *
+	 * @return the number of records read, or -1 if the end of the journal is corrupted
+	 */
+	private int load() {
+		if (!Files.exists(file))
+			return 0;
+
+		int records = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				return 0;
+			if (!source.equals(readString(buffer)) || !target.equals(readString(buffer)))
+				return 0;
+
+			warm = true;
+			while (buffer.hasRemaining()) {
+				byte op = buffer.get();
+				String name = readString(buffer);
+
+				if (op == PUT) {
+					long size = buffer.getLong();
+					long date = buffer.getLong();
+					long hash = buffer.getLong();
+					docs.put(name, size, date, hash);
+				} else if (op == REMOVE) {
+					docs.remove(name);
+				} else if (op == LISTED) {
+					long date = buffer.getLong();
+					long digest = buffer.getLong();
+					docs.setListing(name, date, digest);
+				} else {
+					return -1;
+				}
+				records++;
+			}
+		} catch (BufferUnderflowException e) {
+			// The last record was not fully written, keep what was read so far
+			History.getLogger().log(Level.WARNING, "Snapshot index '" + file + "' is truncated, " + records + " records loaded");
+			return -1;
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to read snapshot index '" + file + "': " + e.getMessage());
+			docs.clear();
+			warm = false;
+			return 0;
+		}
+
+		History.getLogger().log(Level.INFO, "Loaded snapshot index: " + docs.size() + " files, " + docs.memory() / 1024 + " KB");
+		return records;
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+	 *
+	 * @param buffer the buffer to read from
+	 * @return the string read
+	 */
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a string as its UTF-8 length followed by its UTF-8 bytes.
+	 *
+	 * @param out the stream to write to
+	 * @param value the string to write
+	 * @throws IOException if the string cannot be written
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Writes a record storing the given document.
+	 *
+	 * @param out the stream to write to
+	 * @param doc the document to store
+	 * @param hash the content hash of the document, or 0 if unknown
+	 * @throws IOException if the record cannot be written
+	 */
+	private static void writePut(DataOutputStream out, Doc doc, long hash) throws IOException {
+		out.writeByte(PUT);
+		writeString(out, doc.name);
+		out.writeLong(doc.size);
+		out.writeLong(doc.date);
+		out.writeLong(hash);
+	}
+
+	/**
+	 * Writes a record storing the listing of a folder.
+	 *
+	 * @param out the stream to write to
+	 * @param dir the relative path of the folder
+	 * @param date the last modification date of the source folder
+	 * @param digest the digest of the folder
+	 * @throws IOException if the record cannot be written
+	 */
+	private static void writeListed(DataOutputStream out, String dir, long date, long digest) throws IOException {
+		out.writeByte(LISTED);
+		writeString(out, dir);
+		out.writeLong(date);
+		out.writeLong(digest);
+	}
+
+	/**
+	 * Replaces the journal with a compact one holding a single record per document.<br/>
+	 * The new journal is written to a temporary file, then moved over the old one. The store in memory is compacted first.
+	 */
+	private void rewrite() {
+		close();
+		docs.compact();
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, source);
+			writeString(out, target);
+			for (Iterator<Doc> it = docs.iterator(); it.hasNext();) {
+				Doc doc = it.next();
+				writePut(out, doc, docs.getHash(doc.name));
+			}
+			Map<String, long[]> listings = docs.listings();
+			for (Map.Entry<String, long[]> listing : listings.entrySet()) {
+				writeListed(out, listing.getKey(), listing.getValue()[0], listing.getValue()[1]);
+			}
+			records = docs.size() + listings.size();
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to write snapshot index '" + file + "': " + e.getMessage());
+			return;
+		}
+
+		try {
+			FileCopier.replace(tmp, file);
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to write snapshot index '" + file + "': " + e.getMessage());
+			return;
+		}
+
+		openJournal();
+	}
+
+	/**
+	 * Opens the journal for appending.
+	 */
+	private void openJournal() {
+		try {
+			journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true)));
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to open snapshot index '" + file + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Checks whether the index describes the content of the target directory.<br/>
+	 * An index is warm once it has been loaded from disk or filled with {@link #reset(List)} or {@link #commit()}.
+	 *
+	 * @return true if the target directory does not need to be scanned, false otherwise
+	 */
+	public boolean isWarm() {
+		return warm;
+	}
+
+	/**
+	 * Checks whether this index was built for the given pair of directories.
+	 *
+	 * @param source the source directory
+	 * @param target the target directory
+	 * @return true if the index belongs to these directories, false otherwise
+	 */
+	public boolean matches(String source, String target) {
+		return this.source.equals(source) && this.target.equals(target);
+	}
+
+	/**
+	 * Returns the documents of the target directory as recorded by the index.
+	 *
+	 * @return a new list of documents
+	 */
+	public synchronized List<Doc> docs() {
+		return docs.docs();
+	}
+
+	/**
+	 * Returns the documents of the target directory as recorded by the index, sorted in {@link Doc#PATH_ORDER}.<br/>
+	 * The iterator does not copy the index: it reflects the documents recorded while it advances.
+	 *
+	 * @return an iterator over the documents
+	 */
+	public Iterator<Doc> iterator() {
+		Iterator<Doc> it = docs.iterator();
+		return new Iterator<Doc>() {
+			@Override
+			public boolean hasNext() {
+				synchronized (SnapshotIndex.this) {
+					return it.hasNext();
+				}
+			}
+
+			@Override
+			public Doc next() {
+				synchronized (SnapshotIndex.this) {
+					return it.next();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the recorded state of the given document.
+	 *
+	 * @param name the relative path of the document
+	 * @return the document, or null if it is not in the index
+	 */
+	public synchronized Doc get(String name) {
+		return docs.get(name);
+	}
+
+	/**
+	 * Returns the names of the documents recorded under the given folder.
+	 *
+	 * @param dir the relative path of the folder
+	 * @return a new list of relative paths
+	 */
+	public synchronized List<String> children(String dir) {
+		return docs.namesUnder(dir);
+	}
+
+	/**
+	 * Reads the listing of a folder of the source directory from the index, if it did not change since it was recorded.<br/>
+	 * The listing is only trusted if the folder has the recorded date and no document was copied or deleted under it since,
+	 * as told by the digest of the folder. A file modified in place does not change the date of its folder,
+	 * so such a change is only found once the folder is listed from the disk again.
+	 *
+	 * @param dir the relative path of the folder, or an empty string for the root
+	 * @param date the last modification date of the source folder
+	 * @param files the list receiving the documents of the folder
+	 * @param folders the list receiving the relative paths of its subfolders
+	 * @return true if the listing was read, false if the folder must be listed from the disk
+	 */
+	public synchronized boolean listing(String dir, long date, List<Doc> files, List<String> folders) {
+		if (!docs.isListed(dir, date))
+			return false;
+
+		docs.children(dir, files, folders);
+		return true;
+	}
+
+	/**
+	 * Records the listing of a folder of the source directory, if it matches the index.<br/>
+	 * It matches if the folder holds the documents of the index with the same sizes and dates, and every subfolder is in the index.
+	 * A folder modified less than 2 seconds ago is not recorded.
+	 *
+	 * @param dir the relative path of the folder, or an empty string for the root
+	 * @param date the last modification date of the source folder, read before it was listed
+	 * @param files the documents of the folder
+	 * @param folders the relative paths of its subfolders
+	 */
+	public synchronized void listed(String dir, long date, List<Doc> files, List<String> folders) {
+		if (System.currentTimeMillis() - date < RACY_WINDOW || docs.isListed(dir, date))
+			return;
+
+		List<Doc> indexed = new ArrayList<>();
+		List<String> indexedFolders = new ArrayList<>();
+		docs.children(dir, indexed, indexedFolders);
+		if (indexed.size() != files.size() || !indexedFolders.containsAll(folders))
+			return;
+
+		Map<String, Doc> byName = new HashMap<>();
+		for (Doc doc : indexed) {
+			byName.put(doc.name, doc);
+		}
+		for (Doc doc : files) {
+			Doc synced = byName.get(doc.name);
+			if (synced == null || synced.size != doc.size || synced.date != doc.date)
+				return;
+		}
+
+		long digest = docs.getDigest(dir);
+		docs.setListing(dir, date, digest);
+		if (journal == null)
+			return;
+
+		try {
+			writeListed(journal, dir, date, digest);
+			records++;
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to update snapshot index '" + file + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns documents of the index picked at random, to check that the target directory still matches the index.
+	 *
+	 * @param n the number of documents
+	 * @return new documents, fewer than asked if the index is small
+	 */
+	public synchronized List<Doc> sample(int n) {
+		return docs.sample(n, ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Returns the recorded content hash of the given document.
+	 *
+	 * @param name the relative path of the document
+	 * @return the content hash, or 0 if unknown
+	 */
+	public synchronized long getHash(String name) {
+		return docs.getHash(name);
+	}
+
+	/**
+	 * Replaces the whole content of the index, typically with a scan of the target directory.
+	 *
+	 * @param list the documents of the target directory
+	 */
+	public synchronized void reset(List<Doc> list) {
+		docs.clear();
+		for (Doc doc : list) {
+			docs.put(doc.name, doc.size, doc.date, 0);
+		}
+		warm = true;
+		rewrite();
+	}
+
+	/**
+	 * Empties the index before it is filled again while the target directory is walked.<br/>
+	 * The journal is deleted and changes are only kept in memory until {@link #commit()},
+	 * so an index left half filled is never loaded.
+	 */
+	public synchronized void clear() {
+		close();
+		docs.clear();
+		warm = false;
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to delete snapshot index '" + file + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Marks the index filled since {@link #clear()} as describing the target directory, and writes it to the disk.
+	 */
+	public synchronized void commit() {
+		warm = true;
+		rewrite();
+	}
+
+	/**
+	 * Records a document that has just been copied to the target directory.
+	 *
+	 * @param doc the document copied
+	 */
+	public void put(Doc doc) {
+		put(doc, 0);
+	}
+
+	/**
+	 * Records a document that has just been copied to the target directory, with its content hash.
+	 *
+	 * @param doc the document copied
+	 * @param hash the content hash of the document, or 0 if unknown
+	 */
+	public synchronized void put(Doc doc, long hash) {
+		docs.put(doc.name, doc.size, doc.date, hash);
+
+		if (journal == null)
+			return;
+
+		try {
+			writePut(journal, doc, hash);
+			records++;
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to update snapshot index '" + file + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Records a document that has just been deleted from the target directory.<br/>
+	 * If the path is a folder, the documents stored under it are removed instead.
+	 *
+	 * @param name the relative path of the document deleted
+	 */
+	public synchronized void remove(String name) {
+		List<String> removed = docs.get(name) != null ? List.of(name) : docs.namesUnder(name);
+
+		for (String key : removed) {
+			docs.remove(key);
+
+			if (journal == null)
+				continue;
+
+			try {
+				journal.writeByte(REMOVE);
+				writeString(journal, key);
+				records++;
+			} catch (IOException e) {
+				History.getLogger().log(Level.SEVERE, "Unable to update snapshot index '" + file + "': " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending records to the disk.
+	 */
+	public synchronized void flush() {
+		if (journal == null)
+			return;
+
+		try {
+			journal.flush();
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to update snapshot index '" + file + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Rewrites the journal and compacts the store if they hold too many outdated records or removed nodes,
+	 * so the deletions and moves of a watched job do not grow them until the next walk of the target directory.<br/>
+	 * The store is renumbered, so no iterator of the index may be in use.
+	 */
+	public synchronized void compactIfOutdated() {
+		if (journal != null && isOutdated())
+			rewrite();
+	}
+
+	/**
+	 * Checks whether the journal holds more than twice as many records as documents,
+	 * or the store more removed nodes than documents, beyond a margin for small indexes.
+	 */
+	private boolean isOutdated() {
+		return records > 2L * docs.size() + 1024 || docs.removed() > docs.size() + 1024;
+	}
+
+	/**
+	 * Writes the pending records and closes the journal.
+	 */
+	@Override
+	public synchronized void close() {
+		if (journal == null)
+			return;
+
+		try {
+			journal.close();
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to close snapshot index '" + file + "': " + e.getMessage());
+		}
+		journal = null;
+	}
+}
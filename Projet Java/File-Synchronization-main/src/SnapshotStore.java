@@ -0,0 +1,779 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Compact in-memory store of the documents of a {@link SnapshotIndex}.<br/>
+ * Paths are stored as a tree of nodes, one node per file or folder, each pointing to its parent folder and to its name.
+ * The name of a node is a segment of the path, stored once in a pool of UTF-8 bytes however many folders hold it.
+ * The columns of the nodes are primitive arrays: parent, name, size, date, first child, next sibling and digest,
+ * which also hold the content hash of a file and the listing of a folder. A document costs 40 bytes of columns
+ * and about 8 bytes of hash table, plus its name in the pool when no other node shares it, and no object,
+ * so the store never grows the work of the garbage collector.
+ * A hash table of the nodes by parent and name finds a path in one probe per segment.<br/>
+ * Each folder also carries a digest of its subtree, a sum of the digests of its children where a file contributes
+ * its name, size and date, and a folder its name and digest. The digests are kept up to date by every change,
+ * walking up from the changed node, so comparing a folder to an earlier state costs one comparison whatever its size.
+ * A folder can record the date at which it was found identical in the source directory, see {@link #setListing(String, long, long)}.<br/>
+ * Documents are returned as new {@link Doc} objects, sorted in {@link Doc#PATH_ORDER} by {@link #iterator()}.
+ * Removed nodes are only reclaimed by {@link #compact()}.<br/>
+ * The store is not thread-safe, the caller synchronizes the accesses.
+ */
+public class SnapshotStore {
+
+	// Root folder, never stored in the hash table
+	private static final int ROOT = 0;
+
+	// Sizes marking a folder and a removed node
+	private static final long FOLDER = Long.MIN_VALUE;
+	private static final long REMOVED = Long.MIN_VALUE + 1;
+
+	// Date marking a folder whose listing is not recorded
+	private static final long UNLISTED = Long.MIN_VALUE;
+
+	// Columns of the nodes; a file keeps its content hash in the digest column, 0 if unknown,
+	// and a folder keeps the date of its recorded listing in the date column
+	private int[] parents;
+	private int[] names;
+	private long[] sizes;
+	private long[] dates;
+	private int[] firstChildren;
+	private int[] nextSiblings;
+	private long[] digests;
+
+	// Nodes used, removed nodes, and files stored
+	private int count;
+	private int removed;
+	private int files;
+
+	// Nodes by parent and name, with open addressing; 0 marks an empty slot
+	private int[] table;
+
+	// Names of the nodes: a 2 bytes length followed by the UTF-8 bytes, and the names by content, 0 marking an empty slot
+	private byte[] pool;
+	private int poolSize;
+	private int[] poolTable;
+	private int poolCount;
+
+	// Incremented when the nodes are renumbered, so iterators can stop
+	private int generation = 0;
+
+	/**
+	 * Creates an empty store.
+	 */
+	public SnapshotStore() {
+		clear();
+	}
+
+	/**
+	 * Removes every document.
+	 */
+	public void clear() {
+		parents = new int[1024];
+		names = new int[1024];
+		sizes = new long[1024];
+		dates = new long[1024];
+		firstChildren = new int[1024];
+		nextSiblings = new int[1024];
+		digests = new long[1024];
+		table = new int[2048];
+		pool = new byte[16 * 1024];
+		poolTable = new int[1024];
+
+		// The offset 0 of the pool is never a name, so 0 can mark an empty slot
+		poolSize = 1;
+		poolCount = 0;
+		count = 1;
+		removed = 0;
+		files = 0;
+		sizes[ROOT] = FOLDER;
+		dates[ROOT] = UNLISTED;
+		generation++;
+	}
+
+	/**
+	 * Returns the number of documents stored.
+	 *
+	 * @return the number of files
+	 */
+	public int size() {
+		return files;
+	}
+
+	/**
+	 * Returns the memory used by the store.
+	 *
+	 * @return the size of the arrays, in bytes
+	 */
+	public long memory() {
+		return 4L * (parents.length + names.length + firstChildren.length + nextSiblings.length + table.length + poolTable.length)
+				+ 8L * (sizes.length + dates.length + digests.length) + pool.length;
+	}
+
+	/**
+	 * Returns the stored state of a document.
+	 *
+	 * @param name the relative path of the document
+	 * @return a new document, or null if it is not stored
+	 */
+	public Doc get(String name) {
+		int node = find(name);
+		return node < 0 || !isFile(node) ? null : new Doc(name, dates[node], sizes[node]);
+	}
+
+	/**
+	 * Returns the content hash of a document.
+	 *
+	 * @param name the relative path of the document
+	 * @return the content hash, or 0 if unknown
+	 */
+	public long getHash(String name) {
+		int node = find(name);
+		return node < 0 || !isFile(node) ? 0 : digests[node];
+	}
+
+	/**
+	 * Stores a document, replacing its previous state.
+	 *
+	 * @param name the relative path of the document
+	 * @param size the size of the document
+	 * @param date the last modification date of the document
+	 * @param hash the content hash of the document, or 0 if unknown
+	 */
+	public void put(String name, long size, long date, long hash) {
+		int parent = ROOT;
+		int start = 0;
+		while (true) {
+			int slash = name.indexOf('/', start);
+			int end = slash < 0 ? name.length() : slash;
+			int segment = intern(name, start, end, true);
+			int node = child(parent, segment);
+
+			if (slash < 0) {
+				long before = 0;
+				if (node < 0) {
+					node = add(parent, segment);
+				} else if (sizes[node] == FOLDER) {
+					// A folder replaced by a file
+					before = contribution(node);
+					removeChildren(node);
+				} else {
+					before = contribution(node);
+					files--;
+				}
+				sizes[node] = Math.max(size, -1);
+				dates[node] = date;
+				digests[node] = hash;
+				files++;
+				propagate(node, before);
+				return;
+			}
+
+			if (node < 0) {
+				node = add(parent, segment);
+			} else if (sizes[node] != FOLDER) {
+				// A file replaced by a folder
+				long before = contribution(node);
+				files--;
+				sizes[node] = FOLDER;
+				dates[node] = UNLISTED;
+				digests[node] = 0;
+				propagate(node, before);
+			}
+			sizes[node] = FOLDER;
+			parent = node;
+			start = slash + 1;
+		}
+	}
+
+	/**
+	 * Removes a document.
+	 *
+	 * @param name the relative path of the document
+	 * @return true if the document was stored, false otherwise
+	 */
+	public boolean remove(String name) {
+		int node = find(name);
+		if (node < 0 || !isFile(node))
+			return false;
+
+		long before = contribution(node);
+		unlink(node);
+		files--;
+		propagate(node, before);
+		return true;
+	}
+
+	/**
+	 * Returns the digest of the subtree of a folder.
+	 *
+	 * @param dir the relative path of the folder, or an empty string for the root
+	 * @return the digest, or 0 if the folder holds no document
+	 */
+	public long getDigest(String dir) {
+		int node = find(dir);
+		return node < 0 || sizes[node] != FOLDER ? 0 : digests[node];
+	}
+
+	/**
+	 * Records that a folder of the source directory, modified at the given date, held the documents stored here
+	 * when the subtree of the folder had the given digest.<br/>
+	 * Nothing is recorded if the digest is no longer the one of the folder, and the listing is dropped
+	 * as soon as a document is stored or removed in the subtree.
+	 *
+	 * @param dir the relative path of the folder, or an empty string for the root
+	 * @param date the last modification date of the source folder
+	 * @param digest the digest of the folder
+	 */
+	public void setListing(String dir, long date, long digest) {
+		int node = find(dir);
+		if (node >= 0 && sizes[node] == FOLDER && digests[node] == digest && date != UNLISTED)
+			dates[node] = date;
+	}
+
+	/**
+	 * Checks whether a folder of the source directory still holds the documents stored here: its date is the recorded one,
+	 * and no document was stored or removed in its subtree since.
+	 *
+	 * @param dir the relative path of the folder, or an empty string for the root
+	 * @param date the last modification date of the source folder
+	 * @return true if the listing of the folder can be read from the store, false otherwise
+	 */
+	public boolean isListed(String dir, long date) {
+		int node = find(dir);
+		return node >= 0 && sizes[node] == FOLDER && dates[node] != UNLISTED && dates[node] == date;
+	}
+
+	/**
+	 * Returns the folders whose listing is recorded.
+	 *
+	 * @return the date and digest recorded, by relative path of the folder
+	 */
+	public Map<String, long[]> listings() {
+		Map<String, long[]> result = new HashMap<>();
+		for (int node = 0; node < count; node++) {
+			if (sizes[node] == FOLDER && dates[node] != UNLISTED)
+				result.put(path(node), new long[] { dates[node], digests[node] });
+		}
+		return result;
+	}
+
+	/**
+	 * Returns documents picked at random.
+	 *
+	 * @param n the number of documents
+	 * @param random the source of randomness
+	 * @return new documents, fewer than asked if few are stored, possibly repeated
+	 */
+	public List<Doc> sample(int n, Random random) {
+		List<Doc> result = new ArrayList<>();
+		for (int tries = 0; files > 0 && result.size() < n && tries < 8 * n; tries++) {
+			int node = 1 + random.nextInt(count - 1);
+			if (isFile(node))
+				result.add(new Doc(path(node), dates[node], sizes[node]));
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the documents and the folders holding documents stored right under a folder.
+	 *
+	 * @param dir the relative path of the folder, or an empty string for the root
+	 * @param files the list receiving the documents
+	 * @param folders the list receiving the relative paths of the folders
+	 */
+	public void children(String dir, List<Doc> files, List<String> folders) {
+		int node = find(dir);
+		if (node < 0 || sizes[node] != FOLDER)
+			return;
+
+		String prefix = dir.isEmpty() ? "" : dir + "/";
+		for (int child = firstChildren[node]; child != 0; child = nextSiblings[child]) {
+			if (sizes[child] == FOLDER && digests[child] != 0)
+				folders.add(prefix + name(child));
+			else if (isFile(child))
+				files.add(new Doc(prefix + name(child), dates[child], sizes[child]));
+		}
+	}
+
+	/**
+	 * Returns the relative paths of the documents stored under a folder.
+	 *
+	 * @param dir the relative path of the folder
+	 * @return a new list of relative paths
+	 */
+	public List<String> namesUnder(String dir) {
+		List<String> result = new ArrayList<>();
+		int node = find(dir);
+		if (node >= 0 && sizes[node] == FOLDER)
+			collect(node, new StringBuilder(dir).append('/'), result);
+		return result;
+	}
+
+	/**
+	 * Adds the relative paths of the documents stored under a folder.
+	 */
+	private void collect(int dir, StringBuilder path, List<String> result) {
+		int length = path.length();
+		for (int node = firstChildren[dir]; node != 0; node = nextSiblings[node]) {
+			if (sizes[node] == REMOVED)
+				continue;
+			path.append(name(node));
+			if (sizes[node] == FOLDER)
+				collect(node, path.append('/'), result);
+			else
+				result.add(path.toString());
+			path.setLength(length);
+		}
+	}
+
+	/**
+	 * Returns every document stored, sorted in {@link Doc#PATH_ORDER}.
+	 *
+	 * @return a new list of documents
+	 */
+	public List<Doc> docs() {
+		List<Doc> docs = new ArrayList<>(files);
+		for (Iterator<Doc> it = iterator(); it.hasNext();) {
+			docs.add(it.next());
+		}
+		return docs;
+	}
+
+	/**
+	 * Returns the documents stored, sorted in {@link Doc#PATH_ORDER}.<br/>
+	 * The iterator walks the tree of nodes, holding the sorted children of the folders between the root and the current one.
+	 * It sees the documents stored or removed in the folders it has not reached yet,
+	 * and throws a {@link ConcurrentModificationException} after {@link #compact()} or {@link #clear()}.
+	 *
+	 * @return an iterator over new documents
+	 */
+	public Iterator<Doc> iterator() {
+		return new Walk();
+	}
+
+	/**
+	 * Rebuilds the store without the removed nodes and the names no longer used.
+	 */
+	public void compact() {
+		SnapshotStore compact = new SnapshotStore();
+		for (Iterator<Doc> it = iterator(); it.hasNext();) {
+			Doc doc = it.next();
+			compact.put(doc.name, doc.size, doc.date, getHash(doc.name));
+		}
+		for (Map.Entry<String, long[]> listing : listings().entrySet()) {
+			compact.setListing(listing.getKey(), listing.getValue()[0], listing.getValue()[1]);
+		}
+
+		// Trim the columns and the pool to what is used, they grow again when documents are added
+		count = compact.count;
+		parents = Arrays.copyOf(compact.parents, count);
+		names = Arrays.copyOf(compact.names, count);
+		sizes = Arrays.copyOf(compact.sizes, count);
+		dates = Arrays.copyOf(compact.dates, count);
+		firstChildren = Arrays.copyOf(compact.firstChildren, count);
+		nextSiblings = Arrays.copyOf(compact.nextSiblings, count);
+		digests = Arrays.copyOf(compact.digests, count);
+		removed = 0;
+		files = compact.files;
+		table = compact.table;
+		poolSize = compact.poolSize;
+		pool = Arrays.copyOf(compact.pool, poolSize);
+		poolTable = compact.poolTable;
+		poolCount = compact.poolCount;
+		generation++;
+	}
+
+	/**
+	 * Returns the number of nodes removed since the last {@link #compact()}.
+	 *
+	 * @return the number of removed nodes
+	 */
+	public int removed() {
+		return removed;
+	}
+
+	/**
+	 * Checks whether a node is a stored file.
+	 */
+	private boolean isFile(int node) {
+		return sizes[node] != FOLDER && sizes[node] != REMOVED;
+	}
+
+	/**
+	 * Returns the node of a relative path.
+	 *
+	 * @param name the relative path
+	 * @return the node, or -1 if the path is not stored
+	 */
+	private int find(String name) {
+		if (name.isEmpty())
+			return ROOT;
+
+		int node = ROOT;
+		int start = 0;
+		while (node >= 0) {
+			int slash = name.indexOf('/', start);
+			int end = slash < 0 ? name.length() : slash;
+			int segment = intern(name, start, end, false);
+			node = segment < 0 ? -1 : child(node, segment);
+			if (slash < 0)
+				return node;
+			start = slash + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the name of a node.
+	 */
+	private String name(int node) {
+		int offset = names[node];
+		int length = ((pool[offset] & 0xFF) << 8) | (pool[offset + 1] & 0xFF);
+		return new String(pool, offset + 2, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the relative path of a node.
+	 */
+	private String path(int node) {
+		if (node == ROOT)
+			return "";
+		return parents[node] == ROOT ? name(node) : path(parents[node]) + '/' + name(node);
+	}
+
+	/**
+	 * Returns the part of the digest of its parent folder that comes from a node.
+	 * An empty folder adds nothing, so folders left empty by removals do not count.
+	 */
+	private long contribution(int node) {
+		if (sizes[node] == REMOVED)
+			return 0;
+		if (sizes[node] == FOLDER)
+			return digests[node] == 0 ? 0 : mix(nameHash(node) ^ mix(digests[node]));
+		return mix(nameHash(node) + mix(sizes[node] * 0x9E3779B97F4A7C15L + dates[node]));
+	}
+
+	/**
+	 * Updates the digests of the folders above a node whose contribution changed, and drops the listings of those folders.
+	 *
+	 * @param node the node
+	 * @param before the contribution of the node before the change
+	 */
+	private void propagate(int node, long before) {
+		long delta = contribution(node) - before;
+		while (delta != 0) {
+			int parent = parents[node];
+			if (parent == ROOT) {
+				digests[ROOT] += delta;
+				dates[ROOT] = UNLISTED;
+				return;
+			}
+			long old = contribution(parent);
+			digests[parent] += delta;
+			dates[parent] = UNLISTED;
+			delta = contribution(parent) - old;
+			node = parent;
+		}
+	}
+
+	/**
+	 * Returns a 64 bits hash of the UTF-8 bytes of the name of a node.
+	 */
+	private long nameHash(int node) {
+		int offset = names[node];
+		int length = ((pool[offset] & 0xFF) << 8) | (pool[offset + 1] & 0xFF);
+		long hash = 0xCBF29CE484222325L;
+		for (int i = offset + 2; i < offset + 2 + length; i++) {
+			hash = (hash ^ (pool[i] & 0xFF)) * 0x100000001B3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Mixes the bits of a value, so close values give unrelated digests.
+	 */
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+
+	/**
+	 * Returns the slot of the hash table where a node with the given parent and name is searched first.
+	 */
+	private static int slot(int parent, int segment, int mask) {
+		int hash = parent * 0x9E3779B1 + segment;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * Returns the child of a folder with the given name.
+	 *
+	 * @return the node, or -1 if there is none
+	 */
+	private int child(int parent, int segment) {
+		int mask = table.length - 1;
+		for (int i = slot(parent, segment, mask);; i = (i + 1) & mask) {
+			int node = table[i];
+			if (node == 0)
+				return -1;
+			if (parents[node] == parent && names[node] == segment)
+				return node;
+		}
+	}
+
+	/**
+	 * Adds a node at the head of the children of a folder.
+	 *
+	 * @return the new node
+	 */
+	private int add(int parent, int segment) {
+		if (count == parents.length) {
+			int capacity = count * 2;
+			parents = Arrays.copyOf(parents, capacity);
+			names = Arrays.copyOf(names, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+			dates = Arrays.copyOf(dates, capacity);
+			firstChildren = Arrays.copyOf(firstChildren, capacity);
+			nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+			digests = Arrays.copyOf(digests, capacity);
+		}
+
+		int node = count++;
+		parents[node] = parent;
+		names[node] = segment;
+		sizes[node] = FOLDER;
+		dates[node] = UNLISTED;
+		digests[node] = 0;
+		firstChildren[node] = 0;
+		nextSiblings[node] = firstChildren[parent];
+		firstChildren[parent] = node;
+
+		if (4L * (count - removed) > 3L * table.length)
+			rehash(table.length * 2);
+		insert(node);
+		return node;
+	}
+
+	/**
+	 * Puts a node in the hash table.
+	 */
+	private void insert(int node) {
+		int mask = table.length - 1;
+		int i = slot(parents[node], names[node], mask);
+		while (table[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		table[i] = node;
+	}
+
+	/**
+	 * Rebuilds the hash table with the given number of slots.
+	 */
+	private void rehash(int capacity) {
+		int[] old = table;
+		table = new int[capacity];
+		for (int node : old) {
+			if (node != 0)
+				insert(node);
+		}
+	}
+
+	/**
+	 * Marks a node as removed and takes it out of the hash table.<br/>
+	 * The node stays in the children of its parent until the store is compacted.
+	 */
+	private void unlink(int node) {
+		sizes[node] = REMOVED;
+		removed++;
+
+		// Remove the node, then move back the following nodes that were displaced by it
+		int mask = table.length - 1;
+		int i = slot(parents[node], names[node], mask);
+		while (table[i] != node) {
+			i = (i + 1) & mask;
+		}
+		table[i] = 0;
+		for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+			int other = table[j];
+			int home = slot(parents[other], names[other], mask);
+			boolean between = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+			if (!between) {
+				table[i] = other;
+				table[j] = 0;
+				i = j;
+			}
+		}
+	}
+
+	/**
+	 * Removes every node under a folder.
+	 */
+	private void removeChildren(int dir) {
+		for (int node = firstChildren[dir]; node != 0; node = nextSiblings[node]) {
+			if (sizes[node] == REMOVED)
+				continue;
+			if (sizes[node] == FOLDER)
+				removeChildren(node);
+			else
+				files--;
+			unlink(node);
+		}
+	}
+
+	/**
+	 * Returns the name of the pool holding the given segment of a path.
+	 *
+	 * @param path the path
+	 * @param start the start of the segment
+	 * @param end the end of the segment
+	 * @param create true to add the name if it is not in the pool
+	 * @return the offset of the name in the pool, or -1 if it is not there and not created
+	 */
+	private int intern(String path, int start, int end, boolean create) {
+		byte[] bytes = path.substring(start, end).getBytes(StandardCharsets.UTF_8);
+		int hash = Arrays.hashCode(bytes);
+		hash ^= hash >>> 16;
+
+		int mask = poolTable.length - 1;
+		int i = hash & mask;
+		for (int offset = poolTable[i]; offset != 0; offset = poolTable[i = (i + 1) & mask]) {
+			int length = ((pool[offset] & 0xFF) << 8) | (pool[offset + 1] & 0xFF);
+			if (Arrays.equals(pool, offset + 2, offset + 2 + length, bytes, 0, bytes.length))
+				return offset;
+		}
+		if (!create)
+			return -1;
+
+		if (poolSize + 2 + bytes.length > pool.length)
+			pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + 2 + bytes.length));
+		int offset = poolSize;
+		pool[offset] = (byte) (bytes.length >>> 8);
+		pool[offset + 1] = (byte) bytes.length;
+		System.arraycopy(bytes, 0, pool, offset + 2, bytes.length);
+		poolSize += 2 + bytes.length;
+		poolTable[i] = offset;
+
+		if (4 * ++poolCount > 3 * poolTable.length) {
+			int[] old = poolTable;
+			poolTable = new int[old.length * 2];
+			mask = poolTable.length - 1;
+			for (int name : old) {
+				if (name == 0)
+					continue;
+				int length = ((pool[name] & 0xFF) << 8) | (pool[name + 1] & 0xFF);
+				int h = Arrays.hashCode(Arrays.copyOfRange(pool, name + 2, name + 2 + length));
+				int j = (h ^ (h >>> 16)) & mask;
+				while (poolTable[j] != 0) {
+					j = (j + 1) & mask;
+				}
+				poolTable[j] = name;
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Depth-first walk of the tree of nodes in {@link Doc#PATH_ORDER}.
+	 */
+	private class Walk implements Iterator<Doc> {
+
+		// Generation of the store when the walk started
+		private final int expected = generation;
+
+		// Sorted children of the folders being walked, the current one first, and the position in each of them
+		private final List<int[]> children = new ArrayList<>();
+		private final List<String[]> childNames = new ArrayList<>();
+		private final List<int[]> positions = new ArrayList<>();
+
+		// Path of the current folder, with a trailing '/'
+		private final StringBuilder path = new StringBuilder();
+		private final List<Integer> lengths = new ArrayList<>();
+
+		// Next document, or null if it is not found yet
+		private Doc next;
+
+		Walk() {
+			enter(ROOT);
+		}
+
+		/**
+		 * Starts walking a folder.
+		 */
+		private void enter(int dir) {
+			List<Integer> nodes = new ArrayList<>();
+			for (int node = firstChildren[dir]; node != 0; node = nextSiblings[node]) {
+				if (sizes[node] != REMOVED)
+					nodes.add(node);
+			}
+
+			String[] sortedNames = new String[nodes.size()];
+			Integer[] order = new Integer[nodes.size()];
+			String[] unsorted = new String[nodes.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+				unsorted[i] = name(nodes.get(i));
+			}
+			Arrays.sort(order, (a, b) -> Doc.PATH_ORDER.compare(unsorted[a], unsorted[b]));
+
+			int[] sorted = new int[order.length];
+			for (int i = 0; i < order.length; i++) {
+				sorted[i] = nodes.get(order[i]);
+				sortedNames[i] = unsorted[order[i]];
+			}
+
+			children.add(sorted);
+			childNames.add(sortedNames);
+			positions.add(new int[] { 0 });
+			lengths.add(path.length());
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (expected != generation)
+				throw new ConcurrentModificationException();
+
+			while (next == null && !children.isEmpty()) {
+				int last = children.size() - 1;
+				int[] nodes = children.get(last);
+				int[] position = positions.get(last);
+				if (position[0] == nodes.length) {
+					children.remove(last);
+					childNames.remove(last);
+					positions.remove(last);
+					lengths.remove(last);
+					continue;
+				}
+
+				int i = position[0]++;
+				int node = nodes[i];
+				String name = childNames.get(last)[i];
+				path.setLength(lengths.get(last));
+				if (sizes[node] == FOLDER) {
+					path.append(name).append('/');
+					enter(node);
+				} else if (sizes[node] != REMOVED) {
+					next = new Doc(path + name, dates[node], sizes[node]);
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Doc next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Doc doc = next;
+			next = null;
+			return doc;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+/**
+ * Runs several {@link SyncJob} in the same process.<br/>
+ * Every job is ticked at a fixed delay by a small shared pool of threads, and all jobs share one {@link TransferScheduler},
+ * so the number of threads does not grow with the number of jobs.
+ * A tick does a bounded amount of work, see the budgets of {@link SyncJob}, so a busy job only delays the others by one tick.
+ */
+public class SyncEngine {
+
+	// Threads ticking the jobs
+	private final ScheduledExecutorService ticker;
+
+	// Delay between two ticks of the same job, in milliseconds
+	private final long tickDelay;
+
+	// Scheduler running the copies and deletions of every job
+	private final TransferScheduler transfers;
+
+	// Running jobs by name, and their scheduled ticks
+	private final Map<String, SyncJob> jobs = new LinkedHashMap<>();
+	private final Map<String, ScheduledFuture<?>> ticks = new LinkedHashMap<>();
+
+	/**
+	 * Creates an engine with the limits found in the configuration file.<br/>
+	 * The number of ticking threads is set by the "jobs.threads" property and the delay between two ticks by "jobs.tick".
+	 * The limits of the transfers are set by the "transfer.threads", "transfer.largeThreads" and "transfer.largeSize" properties.
+	 * If "compare.content" is true, the content of modified files is compared before copying them.
+	 * A file copied to several targets is read once, a target may fall "fanout.lag" bytes behind the others, 4 MB by default,
+	 * and is copied on its own once it holds them back for "fanout.timeout" milliseconds, 2000 by default.
+	 * The rate of the transfers is limited as set in the configuration, see {@link Throttle#configure(Config)}.
+	 *
+	 * @param config the configuration
+	 */
+	public SyncEngine(Config config) {
+		AtomicInteger count = new AtomicInteger();
+		this.ticker = Executors.newScheduledThreadPool(Math.max(1, config.getInt("jobs.threads", 2)),
+				runnable -> new Thread(runnable, "sync-" + count.incrementAndGet()));
+		this.tickDelay = Math.max(10, config.getLong("jobs.tick", 250));
+		this.transfers = new TransferScheduler(config.getInt("transfer.threads", Runtime.getRuntime().availableProcessors()),
+				config.getInt("transfer.largeThreads", 2), config.getLong("transfer.largeSize", 64L * 1024 * 1024),
+				config.getBoolean("compare.content") ? new DigestStore() : null,
+				config.getLong("fanout.lag", 4L * 1024 * 1024), config.getLong("fanout.timeout", 2000));
+
+		// The limits of the schedule change with the time of day
+		Throttle throttle = Throttle.get();
+		throttle.configure(config);
+		schedule(throttle::tick, 1000);
+	}
+
+	/**
+	 * Starts the given job, replacing the running job with the same name.
+	 *
+	 * @param job the job to start
+	 */
+	public synchronized void add(SyncJob job) {
+		remove(job.getName());
+		String targets = job.getReplicas().stream().map(SyncJob::getTarget).collect(Collectors.joining("', '"));
+		History.getLogger().log(Level.INFO, "Job '" + job.getName() + "' started: '" + job.getSource() + "' to '" + targets + "'");
+		jobs.put(job.getName(), job);
+		ticks.put(job.getName(), ticker.scheduleWithFixedDelay(job::tick, 0, tickDelay, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Stops the job with the given name, waiting for its current tick to end.
+	 *
+	 * @param name the name of the job
+	 */
+	public synchronized void remove(String name) {
+		ScheduledFuture<?> tick = ticks.remove(name);
+		if (tick != null)
+			tick.cancel(false);
+
+		SyncJob job = jobs.remove(name);
+		if (job != null)
+			job.close();
+	}
+
+	/**
+	 * Returns the running job with the given name.
+	 *
+	 * @param name the name of the job
+	 * @return the job, or null if there is none
+	 */
+	public synchronized SyncJob get(String name) {
+		return jobs.get(name);
+	}
+
+	/**
+	 * Returns the running jobs.
+	 *
+	 * @return a copy of the list of jobs
+	 */
+	public synchronized List<SyncJob> getJobs() {
+		return new ArrayList<>(jobs.values());
+	}
+
+	/**
+	 * Runs the given task at a fixed delay on the threads ticking the jobs.
+	 *
+	 * @param task the task to run
+	 * @param delay the delay between two runs, in milliseconds
+	 */
+	public void schedule(Runnable task, long delay) {
+		ticker.scheduleWithFixedDelay(() -> {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				History.getLogger().log(Level.SEVERE, "Scheduled task failed: " + e);
+			}
+		}, 0, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the scheduler running the copies and deletions of every job.
+	 *
+	 * @return the transfer scheduler
+	 */
+	public TransferScheduler getTransfers() {
+		return transfers;
+	}
+
+	/**
+	 * Stops every job and the threads of the engine.
+	 */
+	public synchronized void shutdown() {
+		ticker.shutdownNow();
+		for (String name : new ArrayList<>(jobs.keySet())) {
+			remove(name);
+		}
+	}
+}
@@ -0,0 +1,836 @@
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * A synchronization job, copying the content of one source directory to one target directory.<br/>
+ * Jobs are driven by a shared {@link SyncEngine}, which calls {@link #tick()} regularly.
+ * Each job has its own snapshot index, ignored files, watcher and budgets:
+ * the number of threads walking its directories, the number of transfers it runs per tick,
+ * and the number of its transfers running at the same time on the shared transfer pool.
+ * The budgets keep one large job from starving the others.<br/>
+ * A job copies the source to the target, or, with a {@link Reconciler}, synchronizes both directories in both directions.<br/>
+ * A job copying its source to several targets scans the source once for all of them, and each changed file is read once
+ * and written to every target at the same time, see {@link TransferScheduler#copy(List, Doc)}.
+ * Each other target is a replica of the job, with its own snapshot index, metrics and pending transfers, driven by the job.
+ */
+public class SyncJob {
+
+	// Name of the job started from the command line or the graphical interface
+	public static final String DEFAULT = "default";
+
+	// Name of the job
+	private final String name;
+
+	// Source and target directories, with '/' separators and a trailing '/'
+	private final String source;
+	private final String target;
+
+	// List of files to ignore and its compiled form
+	private final List<String> ignoredList;
+	private final IgnoreMatcher matcher;
+
+	// Last synchronized state of the target directory
+	private final SnapshotIndex index;
+
+	// Targets of the job: this job, then a replica for each other target, sharing the scans of the source
+	private final List<SyncJob> replicas = new ArrayList<>();
+
+	// Walker listing the content of the directories
+	private final TreeWalker walker;
+
+	// True to read the listing of the unchanged source folders from the index
+	private final boolean incremental;
+
+	// Time between two walks of the target directory checking the index, in milliseconds, or 0,
+	// documents of the index checked at each scan, and time of the last walk
+	private final long verifyInterval;
+	private final int verifySample;
+	private long lastVerified = System.currentTimeMillis();
+
+	// Transfers run per tick, and transfers running at the same time
+	private final int copyBudget;
+	private final int maxInFlight;
+
+	// Engine running the job
+	private final SyncEngine engine;
+
+	// Counters and histograms of the job
+	private final Metrics metrics;
+
+	// Reconciler synchronizing both directions, or null if the job only copies the source to the target
+	private final Reconciler reconciler;
+
+	// Watchers of the source directory and, in both directions, of the target directory,
+	// or null if they are not watched yet or cannot be watched
+	private Watcher watcher;
+	private Watcher targetWatcher;
+
+	// False to always scan the directories instead of watching them, true once the job gave up watching them,
+	// and the scheduler of the scans when they are not watched
+	private final boolean watch;
+	private boolean polling = false;
+	private final PollScheduler poll;
+
+	// Time a file must stay unchanged before it is copied, in milliseconds, and the files found still being written
+	private final long quietPeriod;
+	private final Queue<Path> unsettled = new ConcurrentLinkedQueue<>();
+
+	// Comparison of the source and target directories still running, or null,
+	// with its start and whether the index is filled by the walk of the target
+	private MergeScan scan;
+	private long scanStart;
+	private boolean scanCold;
+
+	// Whether the source directory was fully walked since the job started or the process restarted,
+	// the listings of the index are not trusted before, as the folders may have changed while nothing watched them
+	private boolean sourceWalked = false;
+
+	// Counters of the transfers when they were last logged, null before the first tick, and the time from which the next line counts
+	private long[] reported;
+	private long reportedAt;
+
+	// Transfers found by the last full synchronization and not run yet,
+	// new files are held until the comparison is over to find the moved ones
+	private final Deque<Doc> toAdd = new ArrayDeque<>();
+	private final Deque<Doc> toDel = new ArrayDeque<>();
+	private final Deque<String> toReconcile = new ArrayDeque<>();
+
+	// True once the job is closed
+	private boolean closed = false;
+
+	/**
+	 * Creates a job.
+	 *
+	 * @param engine the engine running the job
+	 * @param name the name of the job
+	 * @param source the source directory
+	 * @param target the target directory
+	 * @param ignoredList the list of files to ignore
+	 * @param scanThreads the number of threads walking the directories
+	 * @param copyBudget the maximum number of transfers per tick
+	 * @param maxInFlight the maximum number of transfers running at the same time
+	 * @param conflictRule the rule solving conflicts to synchronize both directions, or null to only copy the source to the target
+	 * @param watch true to watch the directories when possible, false to always scan them
+	 * @param poll the scheduler of the scans when the directories are not watched
+	 * @param quietPeriod the time a file must stay unchanged before it is copied, in milliseconds
+	 * @param incremental true to read the listing of the unchanged source folders from the snapshot index
+	 * @param verifyInterval the time between two walks of the target directory checking the snapshot index, in milliseconds, or 0 to never walk it
+	 * @param verifySample the number of documents of the snapshot index checked in the target directory at each scan
+	 */
+	public SyncJob(SyncEngine engine, String name, String source, String target, List<String> ignoredList,
+			int scanThreads, int copyBudget, int maxInFlight, Reconciler.Rule conflictRule, boolean watch, PollScheduler poll,
+			long quietPeriod, boolean incremental, long verifyInterval, int verifySample) {
+		this.engine = engine;
+		this.name = name;
+		this.source = normalize(source);
+		this.target = normalize(target);
+		this.ignoredList = new ArrayList<>(ignoredList);
+		this.matcher = new IgnoreMatcher(ignoredList);
+		this.index = new SnapshotIndex(DEFAULT.equals(name) ? "snapshot.idx" : "snapshot-" + name + ".idx", this.source, this.target);
+		this.walker = new TreeWalker(scanThreads);
+		this.copyBudget = Math.max(1, copyBudget);
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.reconciler = conflictRule == null ? null : new Reconciler(this, conflictRule);
+		this.metrics = Metrics.of(name);
+		this.watch = watch;
+		this.poll = poll;
+		this.quietPeriod = quietPeriod;
+		this.incremental = incremental;
+		this.verifyInterval = verifyInterval;
+		this.verifySample = verifySample;
+		this.replicas.add(this);
+	}
+
+	/**
+	 * Creates the job with the given name from the configuration file.<br/>
+	 * A job is described by the properties "job.&lt;name&gt;.source", "job.&lt;name&gt;.target" and "job.&lt;name&gt;.ignore".
+	 * The target can list several directories separated by commas: each one after the first is a replica of the job,
+	 * named "&lt;name&gt;#2", "&lt;name&gt;#3"..., see {@link #getReplicas()}. A job synchronizing both directions only uses its first target.
+	 *
+	 * @param engine the engine running the job
+	 * @param config the configuration
+	 * @param name the name of the job
+	 * @return the job, or null if its source or target is missing
+	 */
+	public static SyncJob fromConfig(SyncEngine engine, Config config, String name) {
+		String prefix = "job." + name + ".";
+		String source = config.getString(prefix + "source");
+		String target = config.getString(prefix + "target");
+		if (source == null || target == null) {
+			History.getLogger().log(Level.SEVERE, "Job '" + name + "' needs a source and a target");
+			return null;
+		}
+
+		String ignore = config.getString(prefix + "ignore");
+		List<String> ignored = ignore == null || ignore.isBlank() ? List.of(".DS_Store") : List.of(ignore.split(",\\s*"));
+		String[] targets = target.trim().split("\\s*,\\s*");
+		SyncJob job = create(engine, config, name, source, targets[0], ignored);
+		if (targets.length > 1 && job.reconciler != null) {
+			History.getLogger().log(Level.SEVERE, "Job '" + name + "' synchronizes both directions, only its first target is used");
+			return job;
+		}
+
+		for (int i = 1; i < targets.length; i++) {
+			job.replicas.add(job.replica(targets[i], i + 1));
+		}
+		return job;
+	}
+
+	/**
+	 * Creates a replica of this job, copying the same source with the same settings to another target.<br/>
+	 * The replica is never ticked: the job scans the source and runs the transfers of the replica.
+	 *
+	 * @param target the target directory of the replica
+	 * @param number the position of the target in the list of targets of the job
+	 * @return the replica
+	 */
+	private SyncJob replica(String target, int number) {
+		return new SyncJob(engine, name + "#" + number, source, target, ignoredList, 1, copyBudget, maxInFlight, null,
+				false, poll, quietPeriod, incremental, verifyInterval, verifySample);
+	}
+
+	/**
+	 * Creates a job with the budgets found in the configuration file.<br/>
+	 * The budgets are set by the properties "job.&lt;name&gt;.scan.threads", "job.&lt;name&gt;.copy.budget" and "job.&lt;name&gt;.transfer.inflight",
+	 * or by "scan.threads", "copy.budget" and "transfer.inflight" for every job.
+	 * The job synchronizes both directions if "job.&lt;name&gt;.sync.mode" or "sync.mode" is "two-way",
+	 * and solves conflicts with the rule set by "job.&lt;name&gt;.sync.conflict" or "sync.conflict", see {@link Reconciler.Rule}.
+	 * The directories are scanned instead of watched if "job.&lt;name&gt;.watch" or "watch" is false, as needed on network shares
+	 * whose changes are not reported, and the scans are scheduled as set by {@link PollScheduler#fromConfig(Config, String)}.
+	 * A file is only copied once it has not changed for "job.&lt;name&gt;.debounce.quiet" or "debounce.quiet" milliseconds, 1000 by default.
+	 * If "job.&lt;name&gt;.scan.incremental" or "scan.incremental" is true, the scans only list the source folders whose date changed,
+	 * see {@link TreeWalker#iterate(String, IgnoreMatcher, SnapshotIndex, boolean)}, once the source was fully walked since the job started
+	 * and only while it is watched: the first scan, the rescan after lost events and every scan of a job that polls its source list every folder.
+	 * The target directory is walked to check the snapshot index every "job.&lt;name&gt;.verify.interval" or "verify.interval" milliseconds,
+	 * 24 hours by default, and "job.&lt;name&gt;.verify.sample" or "verify.sample" documents, 32 by default, are checked at each scan.
+	 *
+	 * @param engine the engine running the job
+	 * @param config the configuration
+	 * @param name the name of the job
+	 * @param source the source directory
+	 * @param target the target directory
+	 * @param ignoredList the list of files to ignore
+	 * @return the job
+	 */
+	public static SyncJob create(SyncEngine engine, Config config, String name, String source, String target, List<String> ignoredList) {
+		String prefix = "job." + name + ".";
+		String mode = config.getString(prefix + "sync.mode");
+		if (mode == null)
+			mode = config.getString("sync.mode");
+		String conflict = config.getString(prefix + "sync.conflict");
+		if (conflict == null)
+			conflict = config.getString("sync.conflict");
+
+		return new SyncJob(engine, name, source, target, ignoredList,
+				config.getInt(prefix + "scan.threads", config.getInt("scan.threads", Runtime.getRuntime().availableProcessors())),
+				config.getInt(prefix + "copy.budget", config.getInt("copy.budget", 10000)),
+				config.getInt(prefix + "transfer.inflight", config.getInt("transfer.inflight", 64)),
+				"two-way".equalsIgnoreCase(mode) ? Reconciler.Rule.parse(conflict) : null,
+				config.getBoolean(prefix + "watch", config.getBoolean("watch", true)),
+				PollScheduler.fromConfig(config, name),
+				config.getLong(prefix + "debounce.quiet", config.getLong("debounce.quiet", 1000)),
+				config.getBoolean(prefix + "scan.incremental", config.getBoolean("scan.incremental", false)),
+				config.getLong(prefix + "verify.interval", config.getLong("verify.interval", 24 * 3600 * 1000L)),
+				config.getInt(prefix + "verify.sample", config.getInt("verify.sample", 32)));
+	}
+
+	/**
+	 * Returns the given directory with '/' separators and a trailing '/'.
+	 *
+	 * @param dir the directory
+	 * @return the normalized directory
+	 */
+	private static String normalize(String dir) {
+		dir = dir.replace('\\', '/');
+		return dir.endsWith("/") ? dir : dir + "/";
+	}
+
+	/**
+	 * Runs one step of the job: a full synchronization when it starts or cannot watch its source,
+	 * the pending transfers within the budget, or the changes reported by the watcher.
+	 */
+	public synchronized void tick() {
+		if (closed)
+			return;
+
+		if (!History.getProcessState()) {
+			// The process is stopped, everything will be scanned again when it restarts
+			closeWatcher();
+			polling = false;
+			sourceWalked = false;
+			poll.reset();
+			clearBacklog();
+			return;
+		}
+
+		long start = System.nanoTime();
+		for (SyncJob replica : replicas) {
+			// The metrics outlive a restarted job, and the transfers of the watcher may end between two ticks:
+			// only the transfers ended since the last line are logged, with the next tick
+			if (replica.reported == null)
+				replica.reported = replica.counters();
+			if (Arrays.equals(replica.reported, replica.counters()))
+				replica.reportedAt = start;
+		}
+		try {
+			if (!isBacklogEmpty()) {
+				runBacklog();
+			} else if (watcher == null) {
+				if (polling && !poll.isDue())
+					return;
+
+				// Watch before scanning, so the changes made during the scan are not lost
+				if (!polling && watch) {
+					watcher = Watcher.open(this, source);
+					if (watcher != null && reconciler != null) {
+						targetWatcher = Watcher.open(this, target);
+						if (targetWatcher == null)
+							closeWatcher();
+					}
+				}
+				polling = watcher == null;
+				synchronize();
+			} else if (replicas.stream().anyMatch(SyncJob::isVerificationDue)) {
+				synchronize();
+			} else {
+				watcher.processEvents(copyBudget);
+				if (targetWatcher != null)
+					targetWatcher.processEvents(copyBudget);
+				if (watcher != null)
+					metrics.setQueueDepth(watcher.pending() + (targetWatcher == null ? 0 : targetWatcher.pending()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			History.getLogger().log(Level.SEVERE, label() + "Synchronization failed: " + e);
+		}
+
+		for (SyncJob replica : replicas) {
+			replica.summarize();
+		}
+	}
+
+	/**
+	 * Returns the counters of the transfers of this job.
+	 *
+	 * @return the number of files copied, updated, deleted and moved, and the number of transfers that failed
+	 */
+	private long[] counters() {
+		return new long[] { metrics.getFilesCopied(), metrics.getFilesUpdated(), metrics.getFilesDeleted(), metrics.getFilesMoved(),
+				metrics.getErrors() };
+	}
+
+	/**
+	 * Logs one line summing up the transfers ended since the last line, if any.
+	 * The line of each file is only logged at the FINE level.
+	 */
+	private void summarize() {
+		long[] before = reported;
+		long[] after = counters();
+		long nanos = System.nanoTime() - reportedAt;
+		reported = after;
+		reportedAt = System.nanoTime();
+		long copied = after[0] - before[0], updated = after[1] - before[1], deleted = after[2] - before[2];
+		long moved = after[3] - before[3], errors = after[4] - before[4];
+		if (copied + updated + deleted + moved + errors == 0)
+			return;
+
+		StringBuilder line = new StringBuilder(label());
+		line.append(String.format(Locale.ROOT, "%,d files copied, %,d updated, %,d deleted", copied, updated, deleted));
+		if (moved > 0)
+			line.append(String.format(Locale.ROOT, ", %,d moved", moved));
+		if (errors > 0)
+			line.append(String.format(Locale.ROOT, ", %,d failed", errors));
+		line.append(String.format(Locale.ROOT, " in %.1f s", nanos / 1e9));
+		History.getLogger().log(errors > 0 ? Level.WARNING : Level.INFO, line.toString());
+	}
+
+	/**
+	 * Synchronizes the source and target directories.<br/>
+	 * Both are walked in the same order and compared as they are walked, see {@link MergeScan}:
+	 * each copy and update starts as soon as it is found, within the budget of the job,
+	 * and the next ticks resume the comparison where it stopped. Deletions run once the comparison is over.
+	 * Once the snapshot index describes the target directory, it is used instead of scanning the target again,
+	 * except to check it from time to time or when a sample of it does not match the target, see {@link #drifted()},
+	 * and new files are only copied once the comparison is over: the files moved in the source are then moved
+	 * in the target instead of being copied and deleted, see {@link MoveDetector}.
+	 * With several targets, the source is walked once and compared to every target at the same time.
+	 * In both directions, both directories are scanned and compared to the snapshot index, see {@link Reconciler}.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting for the transfers
+	 */
+	public void synchronize() throws InterruptedException {
+		long start = System.nanoTime();
+		clearBacklog();
+		// The scan must not copy again the files the watcher is still copying
+		if (watcher != null)
+			watcher.await();
+
+		if (reconciler != null) {
+			// Without a baseline, nothing was synchronized yet and no file can be considered deleted
+			if (!index.isWarm())
+				index.reset(List.of());
+			// Both directories are walked, which checks the index as well
+			lastVerified = System.currentTimeMillis();
+			List<Doc> sourceDocs = walker.walk(source, matcher);
+			List<Doc> targetDocs = walker.walk(target, matcher);
+			toReconcile.addAll(reconciler.changes(sourceDocs, targetDocs));
+			scanned(sourceDocs.size() + targetDocs.size(), System.nanoTime() - start, toReconcile.size());
+			runBacklog();
+			return;
+		}
+
+		// Without an index, it is filled while the target directory is walked.
+		// The index is also filled again to check it, which repairs the changes made to the target behind the job
+		List<Iterator<Doc>> targets = new ArrayList<>();
+		for (SyncJob replica : replicas) {
+			replica.scanCold = !replica.index.isWarm() || replica.isVerificationDue() || replica.drifted();
+			if (replica.scanCold) {
+				if (replica.index.isWarm())
+					History.getLogger().log(Level.INFO, replica.label() + "Checking the target directory against the snapshot index");
+				replica.index.clear();
+				replica.lastVerified = System.currentTimeMillis();
+			}
+			targets.add(replica.scanCold ? walker.iterate(replica.target, matcher) : replica.index.iterator());
+		}
+		// The listings are recorded by the walks of a warm index, but only read while a watcher reports the changes,
+		// after a first full walk and not after lost events
+		boolean trusted = sourceWalked && !polling;
+		scan = new MergeScan(walker.iterate(source, matcher, incremental && !scanCold ? index : null, trusted), targets, matcher);
+		scanStart = start;
+
+		runBacklog();
+	}
+
+	/**
+	 * Synchronizes the directories after the watcher lost events.<br/>
+	 * Every source folder is listed from the disk, since a file modified in place while the events were lost
+	 * does not change the date of its folder, and the listings of the index are trusted again once the walk is over.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting for the transfers
+	 */
+	public void rescan() throws InterruptedException {
+		sourceWalked = false;
+		synchronize();
+	}
+
+	/**
+	 * Checks whether the target directory should be walked to check the snapshot index.
+	 *
+	 * @return true if the last walk is older than the interval, false otherwise
+	 */
+	private boolean isVerificationDue() {
+		return verifyInterval > 0 && System.currentTimeMillis() - lastVerified >= verifyInterval;
+	}
+
+	/**
+	 * Checks a sample of the snapshot index against the target directory.<br/>
+	 * A document missing from the target, or with another size or date, shows that the target was changed behind the job.
+	 * Dates are compared within 2 seconds, the precision of some file systems of removable disks.
+	 *
+	 * @return true if the target does not match the index, false otherwise
+	 */
+	private boolean drifted() {
+		for (Doc doc : index.sample(verifySample)) {
+			File file = new File(target + doc.name);
+			if (!file.isFile() || file.length() != doc.size || Math.abs(file.lastModified() - doc.date) > 2000) {
+				History.getLogger().log(Level.WARNING, label() + "'" + doc.name + "' was changed in the target directory");
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records a full synchronization in the metrics and, when the directories are not watched, schedules the next one.
+	 *
+	 * @param entries the number of entries listed
+	 * @param nanos the duration of the synchronization in nanoseconds
+	 * @param changes the number of files to copy, update and delete
+	 */
+	private void scanned(long entries, long nanos, long changes) {
+		metrics.scanned(entries, nanos, changes);
+		if (polling) {
+			poll.scanned(nanos / 1_000_000, changes);
+			History.getLogger().log(Level.FINE, () -> label() + "Next scan in about " + poll.getInterval() + " ms");
+		}
+	}
+
+	/**
+	 * Runs the pending transfers, up to the budget of the job.<br/>
+	 * Deletions only start once the comparison is over, the moves are detected, and every copy and update has been run.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting for the transfers
+	 */
+	private void runBacklog() throws InterruptedException {
+		if (reconciler != null) {
+			List<String> names = new ArrayList<>();
+			while (names.size() < copyBudget && !toReconcile.isEmpty()) {
+				names.add(toReconcile.poll());
+			}
+			if (!toReconcile.isEmpty())
+				History.getLogger().log(Level.INFO, label() + toReconcile.size() + " transfers left for the next tick");
+
+			metrics.setQueueDepth(toReconcile.size());
+			engine.getTransfers().reconcile(this, names);
+			index.flush();
+			index.compactIfOutdated();
+			watchUnsettled();
+			return;
+		}
+
+		int budget = copyBudget;
+		TransferScheduler transfers = engine.getTransfers();
+		List<TransferScheduler.Batch> batches = new ArrayList<>();
+		for (SyncJob replica : replicas) {
+			batches.add(transfers.open(replica));
+		}
+		List<SyncJob> copies = new ArrayList<>();
+
+		// Copy and update the files on the transfer threads as the comparison finds them
+		if (scan != null) {
+			while (budget > 0 && History.getProcessState() && scan.advance()) {
+				Doc doc = scan.getSource();
+				boolean settled = doc == null || Debouncer.isSettled(doc.date, quietPeriod);
+				boolean deferred = false;
+				copies.clear();
+				for (int i = 0; i < replicas.size(); i++) {
+					SyncJob replica = replicas.get(i);
+					MergeScan.Change change = scan.getChange(i);
+					if (replica.scanCold && scan.getTarget(i) != null)
+						replica.index.put(scan.getTarget(i));
+
+					if (change == MergeScan.Change.DELETED) {
+						replica.toDel.add(scan.getTarget(i));
+					} else if (change != MergeScan.Change.ADDED && change != MergeScan.Change.MODIFIED) {
+						continue;
+					} else if (!settled) {
+						// Still being written, copied once it is complete
+						deferred = true;
+					} else if (change == MergeScan.Change.ADDED && !replica.scanCold) {
+						replica.toAdd.add(doc);
+					} else {
+						copies.add(replica);
+					}
+				}
+				if (deferred)
+					defer(source, doc.name);
+				if (!copies.isEmpty()) {
+					copy(batches, doc, copies);
+					budget--;
+				}
+			}
+			await(batches);
+
+			if (budget > 0 && History.getProcessState()) {
+				// The comparison is over
+				scanned(scan.getScanned(), System.nanoTime() - scanStart, scan.getChanges());
+				scan = null;
+				sourceWalked = true;
+				for (SyncJob replica : replicas) {
+					if (replica.scanCold)
+						replica.index.commit();
+					transfers.move(replica, replica.toAdd, replica.toDel);
+				}
+			} else {
+				History.getLogger().log(Level.INFO, label() + "Copy budget reached, the scan resumes at the next tick");
+			}
+		}
+
+		// Then copy the new files that were not moved, once for all the targets missing the same file,
+		// and delete the files on the transfer threads
+		if (scan == null) {
+			while (budget > 0) {
+				Doc doc = null;
+				for (SyncJob replica : replicas) {
+					Doc next = replica.toAdd.peek();
+					if (next != null && (doc == null || Doc.PATH_ORDER.compare(next.name, doc.name) < 0))
+						doc = next;
+				}
+				if (doc == null)
+					break;
+
+				copies.clear();
+				for (SyncJob replica : replicas) {
+					Doc next = replica.toAdd.peek();
+					if (next != null && next.name.equals(doc.name)) {
+						replica.toAdd.poll();
+						copies.add(replica);
+					}
+				}
+				copy(batches, doc, copies);
+				budget--;
+			}
+			await(batches);
+			for (int i = 0; i < replicas.size(); i++) {
+				SyncJob replica = replicas.get(i);
+				while (budget > 0 && replica.toAdd.isEmpty() && !replica.toDel.isEmpty()) {
+					batches.get(i).delete(replica.toDel.poll());
+					budget--;
+				}
+			}
+			await(batches);
+
+			long left = replicas.stream().mapToLong(replica -> replica.toAdd.size() + replica.toDel.size()).sum();
+			if (left > 0)
+				History.getLogger().log(Level.INFO, label() + left + " transfers left for the next tick");
+		}
+
+		for (SyncJob replica : replicas) {
+			replica.metrics.setQueueDepth(replica.toAdd.size() + replica.toDel.size());
+			replica.index.flush();
+			// The comparison walks the index, it is only compacted once it is over
+			if (scan == null)
+				replica.index.compactIfOutdated();
+		}
+		watchUnsettled();
+	}
+
+	/**
+	 * Submits the copy of a new or modified document to some of the targets of the job.<br/>
+	 * The document is copied on its own to a single target, and read once for several targets.
+	 *
+	 * @param batches the batch of each target
+	 * @param doc the document to copy
+	 * @param targets the targets missing the document or with an outdated copy
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private void copy(List<TransferScheduler.Batch> batches, Doc doc, List<SyncJob> targets) throws InterruptedException {
+		if (targets.size() > 1) {
+			batches.get(0).copy(doc, targets);
+			return;
+		}
+
+		SyncJob replica = targets.get(0);
+		TransferScheduler.Batch batch = batches.get(replicas.indexOf(replica));
+		if (replica.index.get(doc.name) == null)
+			batch.add(doc);
+		else
+			batch.update(doc);
+	}
+
+	/**
+	 * Waits until every transfer submitted to the given batches is done.
+	 *
+	 * @param batches the batches
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private static void await(List<TransferScheduler.Batch> batches) throws InterruptedException {
+		for (TransferScheduler.Batch batch : batches) {
+			batch.await();
+		}
+	}
+
+	/**
+	 * Records a file found still being written by a full synchronization.<br/>
+	 * It is not copied yet: its watcher copies it once it is settled or, without watcher, the next scan comes soon since it counts as a change.
+	 * This method can be called from the transfer threads.
+	 *
+	 * @param dir the directory holding the file
+	 * @param name the relative path of the file
+	 */
+	public void defer(String dir, String name) {
+		History.getLogger().log(Level.FINE, () -> label() + "'" + name + "' is still being written, copy postponed");
+		unsettled.add(Path.of(dir + name));
+	}
+
+	/**
+	 * Hands the files found still being written to the watcher of their directory.
+	 */
+	private void watchUnsettled() {
+		for (Path path = unsettled.poll(); path != null; path = unsettled.poll()) {
+			if (targetWatcher != null && path.startsWith(Path.of(target)))
+				targetWatcher.track(path);
+			else if (watcher != null)
+				watcher.track(path);
+		}
+	}
+
+	/**
+	 * Checks whether every transfer found by the last synchronization was run.
+	 *
+	 * @return true if no transfer is pending, false otherwise
+	 */
+	private boolean isBacklogEmpty() {
+		if (scan != null || !toReconcile.isEmpty())
+			return false;
+		for (SyncJob replica : replicas) {
+			if (!replica.toAdd.isEmpty() || !replica.toDel.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the pending transfers.
+	 */
+	private void clearBacklog() {
+		scan = null;
+		toReconcile.clear();
+		for (SyncJob replica : replicas) {
+			replica.toAdd.clear();
+			replica.toDel.clear();
+		}
+	}
+
+	/**
+	 * Stops watching the source directory.
+	 */
+	private void closeWatcher() {
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+		if (targetWatcher != null) {
+			targetWatcher.close();
+			targetWatcher = null;
+		}
+	}
+
+	/**
+	 * Stops the job and releases its resources.
+	 */
+	public synchronized void close() {
+		closed = true;
+		closeWatcher();
+		index.close();
+		walker.close();
+		for (SyncJob replica : replicas) {
+			if (replica != this)
+				replica.close();
+		}
+	}
+
+	/**
+	 * Checks whether this job synchronizes the given directories with the given ignored files.
+	 *
+	 * @param source the source directory
+	 * @param target the target directory
+	 * @param ignoredList the list of files to ignore
+	 * @return true if the job matches, false otherwise
+	 */
+	public boolean matches(String source, String target, List<String> ignoredList) {
+		return this.source.equals(normalize(source)) && this.target.equals(normalize(target))
+				&& this.ignoredList.equals(ignoredList);
+	}
+
+	/**
+	 * Returns the prefix of the log messages of this job.
+	 *
+	 * @return an empty string for the default job, the name of the job between brackets otherwise
+	 */
+	public String label() {
+		return DEFAULT.equals(name) ? "" : "[" + name + "] ";
+	}
+
+	/**
+	 * Returns the time a file must stay unchanged before it is copied.
+	 *
+	 * @return the quiet period, in milliseconds
+	 */
+	public long getQuietPeriod() {
+		return quietPeriod;
+	}
+
+	/**
+	 * Returns the name of the job.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the source directory.
+	 *
+	 * @return the source directory, with '/' separators and a trailing '/'
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns the target directory.
+	 *
+	 * @return the target directory, with '/' separators and a trailing '/'
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * Returns the compiled list of ignored files.
+	 *
+	 * @return the matcher of the ignored files
+	 */
+	public IgnoreMatcher getMatcher() {
+		return matcher;
+	}
+
+	/**
+	 * Returns the snapshot index of the target directory.
+	 *
+	 * @return the snapshot index
+	 */
+	public SnapshotIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns the targets of the job.<br/>
+	 * The first one is the job itself, the others are its replicas: jobs with their own target, snapshot index and metrics,
+	 * whose source is scanned and watched by this job.
+	 *
+	 * @return the job and its replicas
+	 */
+	public List<SyncJob> getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * Returns the reconciler synchronizing both directions.
+	 *
+	 * @return the reconciler, or null if the job only copies the source to the target
+	 */
+	public Reconciler getReconciler() {
+		return reconciler;
+	}
+
+	/**
+	 * Returns the counters and histograms of the job.
+	 *
+	 * @return the metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the engine running the job.
+	 *
+	 * @return the engine
+	 */
+	public SyncEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Returns the maximum number of transfers of this job running at the same time.
+	 *
+	 * @return the number of transfers
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+}
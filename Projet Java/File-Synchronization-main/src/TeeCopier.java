@@ -0,0 +1,351 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Copies a file to several targets at the same time, reading it only once.<br/>
+ * The file is read in chunks into a few shared buffers, and every target is written by its own thread from the same buffers,
+ * as the tee command does. A buffer is only read again once every target has written it, so the memory used does not
+ * depend on the size of the file, and the fastest target is never more than the buffers ahead of the slowest one.<br/>
+ * A target that holds back the others for longer than a timeout, because it is slow or stuck, is detached:
+ * its copy is abandoned and reported as behind, so the caller can copy it on its own while the others go on.
+ * As in {@link FileCopier}, each copy is written to a temporary file next to its target, then renamed over it.
+ */
+public class TeeCopier {
+
+	/**
+	 * Outcome of the copy to one target.
+	 */
+	public enum Outcome {
+		// The target was replaced by the copy
+		COPIED,
+		// The target could not be written
+		FAILED,
+		// The target held back the others and was detached before the end of the copy
+		BEHIND
+	}
+
+	// Size of the chunks read from the source file
+	private static final int CHUNK = 256 * 1024;
+
+	/**
+	 * Chunk of the source file, shared by the targets.
+	 */
+	private static class Chunk {
+
+		// Content of the chunk, read by every target from its own duplicate
+		final ByteBuffer buffer;
+
+		// Targets that did not write the chunk yet
+		final AtomicInteger readers;
+
+		Chunk(ByteBuffer buffer, int readers) {
+			this.buffer = buffer;
+			this.readers = new AtomicInteger(readers);
+		}
+
+		/**
+		 * Records that a target is done with the chunk, and gives the buffer back once every target is.
+		 *
+		 * @param free the buffers that can be read again
+		 */
+		void release(BlockingQueue<ByteBuffer> free) {
+			if (readers.decrementAndGet() == 0)
+				free.offer(buffer);
+		}
+	}
+
+	// Marker ending the chunks sent to a target
+	private static final Chunk END = new Chunk(null, 0);
+
+	/**
+	 * Copy to one target, written on its own thread.
+	 */
+	private static class Writer implements Runnable {
+
+		// File to create or replace, and the last modification date of the copy
+		final Path target;
+		final long date;
+
+		// Chunks not written yet, and the buffers given back
+		final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+		final BlockingQueue<ByteBuffer> free;
+
+		// Outcome of the copy, null while it runs
+		final AtomicReference<Outcome> outcome = new AtomicReference<>();
+
+		// Bytes written so far, and the task writing them
+		volatile long written = 0;
+		Future<?> future;
+
+		Writer(Path target, long date, BlockingQueue<ByteBuffer> free) {
+			this.target = target;
+			this.date = date;
+			this.free = free;
+		}
+
+		@Override
+		public void run() {
+			// Not the temporary file of FileCopier, which may copy this target on its own once it is detached
+			Path tmp = target.resolveSibling("." + target.getFileName() + ".tee" + FileCopier.TMP_SUFFIX);
+			try {
+				try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					for (Chunk chunk = queue.take(); chunk != END; chunk = queue.take()) {
+						try {
+							ByteBuffer data = chunk.buffer.duplicate();
+							while (data.hasRemaining()) {
+								written += out.write(data);
+							}
+						} finally {
+							chunk.release(free);
+						}
+					}
+				}
+
+				Files.setLastModifiedTime(tmp, FileTime.fromMillis(date));
+				if (outcome.compareAndSet(null, Outcome.COPIED))
+					FileCopier.replace(tmp, target);
+			} catch (IOException e) {
+				// A copy ended by the reader is interrupted, only the failures of the target itself are reported
+				Outcome previous = outcome.getAndUpdate(current -> current == null || current == Outcome.COPIED ? Outcome.FAILED : current);
+				if (previous == null || previous == Outcome.COPIED)
+					History.getLogger().log(Level.SEVERE, "Unable to write '" + target + "': " + e.getMessage());
+			} catch (InterruptedException e) {
+				outcome.compareAndSet(null, Outcome.BEHIND);
+			} finally {
+				drain();
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException e) {
+					// Left behind, ignored by the next scans
+				}
+			}
+		}
+
+		/**
+		 * Sends a chunk to the target, or gives it back at once if the copy is over.
+		 *
+		 * @param chunk the chunk
+		 */
+		void send(Chunk chunk) {
+			queue.offer(chunk);
+			// The writer may have drained its queue before the chunk was added
+			if (outcome.get() != null)
+				drain();
+		}
+
+		/**
+		 * Gives back the chunks the target will not write.
+		 */
+		void drain() {
+			for (Chunk chunk = queue.poll(); chunk != null; chunk = queue.poll()) {
+				if (chunk != END)
+					chunk.release(free);
+			}
+		}
+
+		/**
+		 * Ends the copy before it is complete, the target is left as it was.
+		 *
+		 * @param reason the outcome of the copy
+		 */
+		void abort(Outcome reason) {
+			if (outcome.compareAndSet(null, reason))
+				future.cancel(true);
+			drain();
+		}
+	}
+
+	// Threads writing the targets
+	private final ExecutorService writers;
+
+	// Buffers of one copy, which bound how far the fastest target can get ahead of the slowest
+	private final int buffers;
+
+	// Time the other targets wait for a target holding them back before it is detached, in milliseconds
+	private final long timeout;
+
+	/**
+	 * Creates a copier with the given limits.
+	 *
+	 * @param writers the threads writing the targets, one per target during a copy
+	 * @param maxLag the number of bytes the fastest target can get ahead of the slowest one
+	 * @param timeout the time the other targets wait for a target holding them back, in milliseconds
+	 */
+	public TeeCopier(ExecutorService writers, long maxLag, long timeout) {
+		this.writers = writers;
+		this.buffers = (int) Math.max(2, Math.min(4096, maxLag / CHUNK));
+		this.timeout = Math.max(1, timeout);
+	}
+
+	/**
+	 * Copies the given source file over each of the given target files and sets their last modification date.<br/>
+	 * The method returns once every target is written or detached.
+	 *
+	 * @param source the file to copy
+	 * @param targets the files to create or replace, their parent directories must exist
+	 * @param date the last modification date of the copies in milliseconds since the epoch
+	 * @return the outcome of the copy to each target, in the order of the targets
+	 * @throws IOException if the source file cannot be read, no target is replaced in that case
+	 */
+	public Outcome[] copy(Path source, List<Path> targets, long date) throws IOException {
+		BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+		List<Writer> list = new ArrayList<>();
+
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+			long size = in.size();
+			int capacity = (int) Math.min(CHUNK, size);
+			for (Path target : targets) {
+				Writer writer = new Writer(target, date, free);
+				list.add(writer);
+				writer.future = writers.submit(writer);
+			}
+
+			try {
+				int allocated = 0;
+				int detached = 0;
+				long position = 0;
+				while (position < size) {
+					// A target stuck in a write may never give its buffer back, a new one replaces it
+					ByteBuffer buffer = free.poll();
+					if (buffer == null && allocated < buffers + detached) {
+						buffer = ByteBuffer.allocate(capacity);
+						allocated++;
+					}
+					if (buffer == null)
+						buffer = free.poll(timeout, TimeUnit.MILLISECONDS);
+					if (buffer == null) {
+						if (detachSlowest(list))
+							detached++;
+						continue;
+					}
+
+					buffer.clear().limit((int) Math.min(capacity, size - position));
+					int count = in.read(buffer, position);
+					// The source was truncated while being copied
+					if (count <= 0)
+						break;
+					position += count;
+					buffer.flip();
+
+					List<Writer> live = list.stream().filter(writer -> writer.outcome.get() == null).toList();
+					if (live.isEmpty())
+						break;
+					// Every target writes the chunk, each copy counts in the limit of the transfers
+					Throttle.get().transfer((long) count * live.size());
+					Chunk chunk = new Chunk(buffer, live.size());
+					for (Writer writer : live) {
+						writer.send(chunk);
+					}
+				}
+				for (Writer writer : list) {
+					writer.send(END);
+				}
+			} catch (IOException | RuntimeException e) {
+				abort(list);
+				throw e;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				abort(list);
+				throw new InterruptedIOException("Copy of '" + source + "' interrupted");
+			}
+		}
+
+		await(list);
+		Outcome[] outcomes = new Outcome[list.size()];
+		for (int i = 0; i < outcomes.length; i++) {
+			Outcome outcome = list.get(i).outcome.get();
+			outcomes[i] = outcome == null ? Outcome.FAILED : outcome;
+		}
+		return outcomes;
+	}
+
+	/**
+	 * Detaches the target furthest behind, if it holds back another target that has written every chunk sent to it.
+	 *
+	 * @param list the copies to the targets
+	 * @return true if a target was detached, false if every target is busy
+	 */
+	private boolean detachSlowest(List<Writer> list) {
+		Writer slowest = null;
+		boolean idle = false;
+		for (Writer writer : list) {
+			if (writer.outcome.get() != null)
+				continue;
+			if (writer.queue.isEmpty())
+				idle = true;
+			if (slowest == null || writer.queue.size() > slowest.queue.size())
+				slowest = writer;
+		}
+		if (slowest == null || !idle || slowest.queue.isEmpty())
+			return false;
+
+		Writer behind = slowest;
+		History.getLogger().log(Level.FINE, () -> "'" + behind.target + "' holds back the other targets, copy detached");
+		behind.abort(Outcome.BEHIND);
+		return true;
+	}
+
+	/**
+	 * Waits until every target is written.<br/>
+	 * A target making no progress for the timeout while the others are done is detached.
+	 *
+	 * @param list the copies to the targets
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	private void await(List<Writer> list) throws InterruptedIOException {
+		for (Writer writer : list) {
+			long written = -1;
+			while (true) {
+				try {
+					writer.future.get(timeout, TimeUnit.MILLISECONDS);
+					break;
+				} catch (CancellationException | ExecutionException e) {
+					break;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					abort(list);
+					throw new InterruptedIOException("Copy to '" + writer.target + "' interrupted");
+				} catch (TimeoutException e) {
+					if (writer.written == written && list.stream().allMatch(other -> other == writer || other.future.isDone())) {
+						History.getLogger().log(Level.FINE, () -> "'" + writer.target + "' makes no progress, copy detached");
+						writer.abort(Outcome.BEHIND);
+						break;
+					}
+					written = writer.written;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ends every copy still running, their targets are left as they were.
+	 *
+	 * @param list the copies to the targets
+	 */
+	private static void abort(List<Writer> list) {
+		for (Writer writer : list) {
+			if (writer.future != null)
+				writer.abort(Outcome.FAILED);
+		}
+	}
+}
@@ -0,0 +1,354 @@
+import java.lang.management.ManagementFactory;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Limits the rate of the transfers of every job: bytes written per second, and files copied, moved or deleted per second.<br/>
+ * Each limit is a token bucket. A transfer reserves its tokens and waits until the time at which the bucket will have
+ * produced them, so the threads waiting on the same limit are served in turn and the average rate is exact
+ * for small and large files alike. The tokens left unused are kept for a short time only, so a transfer starting after
+ * an idle period may go ahead at once, but the limit cannot be exceeded for longer than that.<br/>
+ * Large files are written in chunks of a fraction of a second each, so they do not take the whole rate in one go.
+ * When a limit is not set, the transfers only read it and are neither cut into chunks nor locked.<br/>
+ * The limits can change with the time of day, and can be changed at runtime through JMX or from the GUI.
+ */
+public class Throttle implements ThrottleMXBean {
+
+	// Time for which unused tokens are kept, which bounds the burst after an idle period, in nanoseconds
+	private static final long BURST = TimeUnit.MILLISECONDS.toNanos(100);
+
+	// Bounds of the chunks a limited copy is written in
+	private static final long MIN_CHUNK = 16 * 1024;
+	private static final long MAX_CHUNK = 8 * 1024 * 1024;
+
+	// Throttle shared by every job of the process
+	private static final Throttle GLOBAL = new Throttle();
+
+	/**
+	 * Token bucket of one limit.
+	 */
+	private static class Bucket {
+
+		// Tokens produced per second, 0 if unlimited
+		volatile long rate = 0;
+
+		// Time at which every token reserved so far is produced, in the time of System.nanoTime
+		private long next = System.nanoTime();
+
+		/**
+		 * Reserves the given number of tokens.
+		 *
+		 * @param tokens the number of tokens
+		 * @return the time to wait before using them, in nanoseconds
+		 */
+		synchronized long reserve(long tokens) {
+			long rate = this.rate;
+			if (rate <= 0)
+				return 0;
+
+			long now = System.nanoTime();
+			next = Math.max(next, now - BURST);
+			long wait = next - now;
+			next += (long) (tokens * 1e9 / rate);
+			return Math.max(0, wait);
+		}
+
+		/**
+		 * Changes the rate.<br/>
+		 * When the rate is raised or removed, the tokens already reserved are not charged again.
+		 * When it is lowered, the tokens reserved and not produced yet are produced at the new rate,
+		 * so lowering a limit never lets the waiting transfers go at once.
+		 *
+		 * @param rate the tokens produced per second, 0 if unlimited
+		 */
+		synchronized void setRate(long rate) {
+			long old = this.rate;
+			rate = Math.max(0, rate);
+			long now = System.nanoTime();
+			if (old > 0 && rate > 0 && rate < old) {
+				if (next > now)
+					next = now + (long) ((next - now) * (double) old / rate);
+			} else if (rate != old) {
+				next = Math.min(next, now);
+			}
+			this.rate = rate;
+		}
+	}
+
+	/**
+	 * Limits applied during a period of the day.
+	 *
+	 * @param from the start of the period, in minutes since midnight
+	 * @param to the end of the period, in minutes since midnight, before the start if the period spans midnight
+	 * @param bytes the bytes per second, 0 if unlimited
+	 * @param ops the files per second, 0 if unlimited
+	 */
+	private record Window(int from, int to, long bytes, long ops) {
+
+		boolean contains(int minute) {
+			return from <= to ? minute >= from && minute < to : minute >= from || minute < to;
+		}
+	}
+
+	// Limits of the bytes written and of the files copied, moved or deleted
+	private final Bucket bandwidth = new Bucket();
+	private final Bucket files = new Bucket();
+
+	// Limits applied outside the periods of the schedule
+	private long baseBytes = 0;
+	private long baseOps = 0;
+
+	// Periods of the day with their own limits, and the index of the period applied, -1 for none
+	private List<Window> schedule = List.of();
+	private int current = -1;
+
+	// Time spent waiting for tokens, in nanoseconds
+	private final LongAdder waited = new LongAdder();
+
+	/**
+	 * Creates an unlimited throttle and publishes it through JMX.
+	 */
+	private Throttle() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("filesync:type=Throttle"));
+		} catch (JMException e) {
+			History.getLogger().log(Level.WARNING, "Unable to publish the throttle: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the throttle shared by every job of the process.
+	 *
+	 * @return the throttle
+	 */
+	public static Throttle get() {
+		return GLOBAL;
+	}
+
+	/**
+	 * Sets the limits found in the configuration file.<br/>
+	 * The bytes per second are set by the "throttle.bytes" property and the files per second by "throttle.ops",
+	 * both unlimited by default. A rate may end with k, m or g for multiples of 1024.
+	 * The "throttle.schedule" property lists periods of the day with their own limits, separated by commas,
+	 * each written "HH:mm-HH:mm bytes [ops]", for example "08:00-19:00 5m 100, 23:00-06:00 0".
+	 * Outside these periods, the limits of "throttle.bytes" and "throttle.ops" apply.
+	 *
+	 * @param config the configuration
+	 */
+	public synchronized void configure(Config config) {
+		baseBytes = rate("throttle.bytes", config.getString("throttle.bytes"));
+		baseOps = rate("throttle.ops", config.getString("throttle.ops"));
+
+		List<Window> windows = new ArrayList<>();
+		String value = config.getString("throttle.schedule");
+		if (value != null && !value.isBlank()) {
+			for (String entry : value.split(",")) {
+				try {
+					windows.add(window(entry.trim()));
+				} catch (RuntimeException e) {
+					History.getLogger().log(Level.WARNING, "Invalid period in 'throttle.schedule': " + entry.trim());
+				}
+			}
+		}
+		schedule = windows;
+		current = -2;
+		tick();
+	}
+
+	/**
+	 * Applies the limits of the period of the day, if it changed since the last call.<br/>
+	 * A limit changed at runtime therefore holds until the start or end of the next period.
+	 */
+	public synchronized void tick() {
+		LocalTime now = LocalTime.now();
+		int minute = now.getHour() * 60 + now.getMinute();
+		int index = -1;
+		for (int i = 0; i < schedule.size() && index < 0; i++) {
+			if (schedule.get(i).contains(minute))
+				index = i;
+		}
+		if (index == current)
+			return;
+
+		current = index;
+		Window window = index < 0 ? null : schedule.get(index);
+		long bytes = window == null ? baseBytes : window.bytes();
+		long ops = window == null ? baseOps : window.ops();
+		if (bytes == bandwidth.rate && ops == files.rate)
+			return;
+
+		bandwidth.setRate(bytes);
+		files.setRate(ops);
+		History.getLogger().log(Level.INFO, "Transfer limits: " + describe(bytes, "bytes/s") + ", " + describe(ops, "files/s"));
+	}
+
+	/**
+	 * Waits until the given number of bytes may be written.
+	 *
+	 * @param bytes the number of bytes about to be written
+	 */
+	public void transfer(long bytes) {
+		if (bandwidth.rate > 0)
+			pause(bandwidth, bandwidth.reserve(bytes));
+	}
+
+	/**
+	 * Waits until the given number of files may be copied, moved or deleted.
+	 *
+	 * @param count the number of files about to be copied, moved or deleted
+	 */
+	public void operations(int count) {
+		if (files.rate > 0)
+			pause(files, files.reserve(count));
+	}
+
+	/**
+	 * Returns the size of the chunks a copy should be written in, so each chunk takes a fraction of a second at the current limit.
+	 *
+	 * @return the number of bytes, {@link Long#MAX_VALUE} if the bytes are not limited
+	 */
+	public long chunk() {
+		long rate = bandwidth.rate;
+		return rate <= 0 ? Long.MAX_VALUE : Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, rate / 16));
+	}
+
+	/**
+	 * Waits until the tokens reserved in a bucket are produced.<br/>
+	 * The wait ends early if the rate of the bucket is raised or removed, so a higher limit applies at once,
+	 * and the time left grows in proportion if it is lowered, as the reservations of the bucket do.
+	 * If the thread is interrupted, the method returns at once and the interrupt is kept for the transfer to stop.
+	 *
+	 * @param bucket the bucket the tokens were reserved in
+	 * @param nanos the time to wait, in nanoseconds
+	 */
+	private void pause(Bucket bucket, long nanos) {
+		if (nanos <= 0)
+			return;
+
+		long rate = bucket.rate;
+		long start = System.nanoTime();
+		long end = start + nanos;
+		try {
+			for (long now = start; now < end; now = System.nanoTime()) {
+				long current = bucket.rate;
+				if (current <= 0 || current > rate)
+					break;
+				if (current < rate) {
+					end = now + (long) ((end - now) * (double) rate / current);
+					rate = current;
+				}
+				TimeUnit.NANOSECONDS.sleep(Math.min(end - now, BURST));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		waited.add(System.nanoTime() - start);
+	}
+
+	@Override
+	public long getBytesPerSecond() {
+		return bandwidth.rate;
+	}
+
+	@Override
+	public synchronized void setBytesPerSecond(long bytes) {
+		bandwidth.setRate(bytes);
+		if (current < 0)
+			baseBytes = bandwidth.rate;
+		History.getLogger().log(Level.INFO, "Transfer limit: " + describe(bandwidth.rate, "bytes/s"));
+	}
+
+	@Override
+	public long getOpsPerSecond() {
+		return files.rate;
+	}
+
+	@Override
+	public synchronized void setOpsPerSecond(long ops) {
+		files.setRate(ops);
+		if (current < 0)
+			baseOps = files.rate;
+		History.getLogger().log(Level.INFO, "Transfer limit: " + describe(files.rate, "files/s"));
+	}
+
+	@Override
+	public long getWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waited.sum());
+	}
+
+	/**
+	 * Parses a rate, optionally followed by k, m or g for multiples of 1024.
+	 *
+	 * @param value the text of the rate
+	 * @return the rate, 0 if unlimited
+	 * @throws NumberFormatException if the text is not a rate
+	 */
+	public static long parse(String value) {
+		String text = value.trim().toLowerCase(Locale.ROOT);
+		long unit = 1;
+		if (!text.isEmpty() && "kmg".indexOf(text.charAt(text.length() - 1)) >= 0) {
+			unit = switch (text.charAt(text.length() - 1)) {
+			case 'k' -> 1024L;
+			case 'm' -> 1024L * 1024;
+			default -> 1024L * 1024 * 1024;
+			};
+			text = text.substring(0, text.length() - 1).trim();
+		}
+		double rate = Double.parseDouble(text);
+		if (rate < 0 || Double.isNaN(rate))
+			throw new NumberFormatException("Negative rate: " + value);
+		return (long) (rate * unit);
+	}
+
+	/**
+	 * Reads a rate of the configuration.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property, or null if it is missing
+	 * @return the rate, 0 if it is missing or invalid
+	 */
+	private static long rate(String key, String value) {
+		if (value == null || value.isBlank())
+			return 0;
+		try {
+			return parse(value);
+		} catch (NumberFormatException e) {
+			History.getLogger().log(Level.WARNING, "Invalid value for '" + key + "': " + value);
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses a period of the schedule, written "HH:mm-HH:mm bytes [ops]".
+	 *
+	 * @param entry the text of the period
+	 * @return the period
+	 * @throws RuntimeException if the text is not a period
+	 */
+	private static Window window(String entry) {
+		String[] parts = entry.split("\\s+");
+		if (parts.length < 2 || parts.length > 3)
+			throw new IllegalArgumentException(entry);
+
+		String[] times = parts[0].split("-");
+		LocalTime from = LocalTime.parse(times[0]);
+		LocalTime to = LocalTime.parse(times[1]);
+		return new Window(from.getHour() * 60 + from.getMinute(), to.getHour() * 60 + to.getMinute(),
+				parse(parts[1]), parts.length == 3 ? parse(parts[2]) : 0);
+	}
+
+	/**
+	 * Describes a limit for the log.
+	 */
+	private static String describe(long rate, String unit) {
+		return rate <= 0 ? "unlimited " + unit : rate + " " + unit;
+	}
+}
@@ -0,0 +1,16 @@
+/**
+ * Management interface of the {@link Throttle} of the transfers, published through JMX under the name "filesync:type=Throttle".<br/>
+ * A limit set here holds until the schedule of the throttle changes it, 0 means unlimited.
+ */
+public interface ThrottleMXBean {
+
+	long getBytesPerSecond();
+
+	void setBytesPerSecond(long bytes);
+
+	long getOpsPerSecond();
+
+	void setOpsPerSecond(long ops);
+
+	long getWaitMillis();
+}
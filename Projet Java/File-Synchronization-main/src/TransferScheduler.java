@@ -0,0 +1,478 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Copies and deletes documents on a bounded pool of worker threads.<br/>
+ * Small files and large files run on separate pools, so a few large copies cannot hold every worker.
+ * New files are copied, modified files are updated in place when possible, and the parent directories are created before.
+ * Deletions only start once every copy and update is done, so a path just written is never deleted.<br/>
+ * The pools are shared by every {@link SyncJob}: the number of tasks of a job waiting or running is bounded by its own limit,
+ * so a large job cannot fill the pools ahead of the others.
+ * A file copied to the targets of several jobs sharing its source is read once and written to all of them at once, see {@link TeeCopier}.
+ * The remaining work is dropped as soon as the process is stopped.
+ */
+public class TransferScheduler {
+
+	// Pools running the copies of small and large files, and the deletions
+	private final ExecutorService small;
+	private final ExecutorService large;
+
+	// Size from which a file is copied on the large pool
+	private final long largeSize;
+
+	// Digests used to skip copies of files whose content did not change, or null to always copy
+	private final DigestStore digests;
+
+	// Copier writing a file to several targets while reading it once
+	private final TeeCopier tee;
+
+	/**
+	 * Creates a scheduler with the given limits.
+	 *
+	 * @param threads the number of files copied or deleted at the same time
+	 * @param largeThreads the number of large files copied at the same time
+	 * @param largeSize the size in bytes from which a file is considered large
+	 * @param digests the digests used to compare the content of modified files, or null to compare dates only
+	 * @param maxLag the number of bytes a target can fall behind the others when a file is copied to several targets
+	 * @param lagTimeout the time the other targets wait for a target holding them back, in milliseconds
+	 */
+	public TransferScheduler(int threads, int largeThreads, long largeSize, DigestStore digests, long maxLag, long lagTimeout) {
+		threads = Math.max(1, threads);
+		largeThreads = Math.max(1, largeThreads);
+
+		this.small = Executors.newFixedThreadPool(threads, daemon("transfer"));
+		this.large = Executors.newFixedThreadPool(largeThreads, daemon("transfer-large"));
+		this.largeSize = largeSize;
+		this.digests = digests;
+		this.tee = new TeeCopier(Executors.newCachedThreadPool(daemon("tee")), maxLag, lagTimeout);
+	}
+
+	/**
+	 * Returns a factory creating daemon threads with the given name prefix.
+	 *
+	 * @param name the prefix of the thread names
+	 * @return the thread factory
+	 */
+	private static ThreadFactory daemon(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Opens a batch of transfers for a job, to submit the transfers one at a time as they are found.
+	 *
+	 * @param job the job the documents belong to
+	 * @return the batch
+	 */
+	public Batch open(SyncJob job) {
+		return new Batch(job);
+	}
+
+	/**
+	 * Transfers of a job submitted one at a time.<br/>
+	 * Submitting waits while the job has too many transfers pending, so the transfers found by a scan
+	 * start right away and never pile up in memory. Transfers are skipped once the process is stopped.
+	 */
+	public class Batch {
+
+		// Job the documents belong to
+		private final SyncJob job;
+
+		// Permits bounding the transfers of the job waiting or running
+		private final int capacity;
+		private final Semaphore pending;
+
+		// Last parent directory created in the target directory
+		private String parent;
+
+		/**
+		 * Creates an empty batch.
+		 *
+		 * @param job the job the documents belong to
+		 */
+		private Batch(SyncJob job) {
+			this.job = job;
+			this.capacity = job.getMaxInFlight();
+			this.pending = new Semaphore(capacity);
+		}
+
+		/**
+		 * Submits the copy of a new document to the target directory.<br/>
+		 * Its parent directory is created first, so copies of sibling files do not race to create it.
+		 *
+		 * @param doc the document to copy from the source directory
+		 * @throws InterruptedException if the thread is interrupted while waiting
+		 */
+		public void add(Doc doc) throws InterruptedException {
+			if (!History.getProcessState())
+				return;
+
+			int slash = doc.name.lastIndexOf('/');
+			boolean created = parent != null && parent.length() == slash + 1 && doc.name.startsWith(parent);
+			if (slash > 0 && !created) {
+				parent = doc.name.substring(0, slash + 1);
+				new File(job.getTarget() + parent).mkdirs();
+			}
+			submit(pending, doc.size >= largeSize ? large : small, () -> save(job, doc));
+		}
+
+		/**
+		 * Submits the update of a document whose copy in the target directory is outdated.
+		 *
+		 * @param doc the modified document
+		 * @throws InterruptedException if the thread is interrupted while waiting
+		 */
+		public void update(Doc doc) throws InterruptedException {
+			if (History.getProcessState())
+				submit(pending, doc.size >= largeSize ? large : small, () -> TransferScheduler.this.update(job, doc));
+		}
+
+		/**
+		 * Submits the copy of a new or modified document to the target directories of several jobs sharing its source directory.<br/>
+		 * The document is read once for every target, see {@link TransferScheduler#copy(List, Doc)}.
+		 *
+		 * @param doc the document to copy from the source directory
+		 * @param jobs the jobs whose target directory is missing or outdated
+		 * @throws InterruptedException if the thread is interrupted while waiting
+		 */
+		public void copy(Doc doc, List<SyncJob> jobs) throws InterruptedException {
+			copy(doc, jobs, null);
+		}
+
+		/**
+		 * Submits the copy of a new or modified document to the target directories of several jobs sharing its source directory,
+		 * and runs the given task once it is over, see {@link #copy(Doc, List)}.
+		 *
+		 * @param doc the document to copy from the source directory
+		 * @param jobs the jobs whose target directory is missing or outdated
+		 * @param done the task run once the copy is over or skipped, whatever its outcome, or null
+		 * @throws InterruptedException if the thread is interrupted while waiting
+		 */
+		public void copy(Doc doc, List<SyncJob> jobs, Runnable done) throws InterruptedException {
+			List<SyncJob> targets = List.copyOf(jobs);
+			if (History.getProcessState())
+				submit(pending, doc.size >= largeSize ? large : small, () -> TransferScheduler.this.copy(targets, doc), done);
+			else if (done != null)
+				done.run();
+		}
+
+		/**
+		 * Submits the deletion of a document from the target directory.<br/>
+		 * Deletions are only submitted once the copies are done, see {@link #await()}.
+		 *
+		 * @param doc the document to delete
+		 * @throws InterruptedException if the thread is interrupted while waiting
+		 */
+		public void delete(Doc doc) throws InterruptedException {
+			delete(doc, null);
+		}
+
+		/**
+		 * Submits the deletion of a document from the target directory, and runs the given task once it is over.
+		 *
+		 * @param doc the document to delete
+		 * @param done the task run once the deletion is over or skipped, whatever its outcome, or null
+		 * @throws InterruptedException if the thread is interrupted while waiting
+		 */
+		public void delete(Doc doc, Runnable done) throws InterruptedException {
+			if (History.getProcessState())
+				submit(pending, small, () -> TransferScheduler.this.delete(job, doc), done);
+			else if (done != null)
+				done.run();
+		}
+
+		/**
+		 * Waits until every transfer submitted to the batch is done.
+		 *
+		 * @throws InterruptedException if the thread is interrupted while waiting
+		 */
+		public void await() throws InterruptedException {
+			TransferScheduler.await(pending, capacity);
+		}
+	}
+
+	/**
+	 * Moves in the target directory of a job the files that were moved or renamed in its source directory, see {@link MoveDetector}.<br/>
+	 * The files moved are removed from both collections. Moves only rename paths, they run on the calling thread.
+	 *
+	 * @param job the job the documents belong to
+	 * @param added the documents missing from the target directory
+	 * @param deleted the documents missing from the source directory, as recorded by the snapshot index
+	 * @return the number of files moved
+	 */
+	public int move(SyncJob job, Collection<Doc> added, Collection<Doc> deleted) {
+		return new MoveDetector(job, digests).apply(added, deleted);
+	}
+
+	/**
+	 * Reconciles the given paths of a job running in both directions, see {@link Reconciler}.<br/>
+	 * The method returns once every path is reconciled, or as soon as possible once the process is stopped.
+	 *
+	 * @param job the job the paths belong to
+	 * @param names the relative paths changed on either side
+	 * @throws InterruptedException if the thread is interrupted while waiting for the tasks
+	 */
+	public void reconcile(SyncJob job, List<String> names) throws InterruptedException {
+		int capacity = job.getMaxInFlight();
+		Semaphore pending = new Semaphore(capacity);
+
+		for (String name : names) {
+			if (!History.getProcessState())
+				break;
+
+			submit(pending, small, () -> job.getReconciler().reconcile(name));
+		}
+		await(pending, capacity);
+	}
+
+	/**
+	 * Copies the given new document to the target directory of the job and records it in its index.
+	 *
+	 * @param job the job the document belongs to
+	 * @param doc the document to copy
+	 */
+	public void save(SyncJob job, Doc doc) {
+		Throttle.get().operations(1);
+		History.getLogger().log(Level.FINE, () -> job.label() + "Change detected on '" + doc.name + "'. File synchronized");
+		long start = System.nanoTime();
+		if (doc.saveTo(job.getSource(), job.getTarget())) {
+			job.getIndex().put(doc);
+			job.getMetrics().copied(doc, false, System.nanoTime() - start);
+		} else {
+			job.getMetrics().failed();
+		}
+	}
+
+	/**
+	 * Copies the given new or modified document to the target directories of several jobs sharing its source directory,
+	 * and records it in their index.<br/>
+	 * The document is read once and written to every target at the same time, see {@link TeeCopier}.
+	 * The targets whose copy is compared to the source or patched in place, rather than replaced, are updated on their own,
+	 * see {@link #update(SyncJob, Doc)}, as is a target detached because it held back the others.
+	 *
+	 * @param jobs the jobs whose target directory is missing or outdated, with the same source directory
+	 * @param doc the document to copy
+	 */
+	public void copy(List<SyncJob> jobs, Doc doc) {
+		if (jobs.size() == 1) {
+			transfer(jobs.get(0), doc);
+			return;
+		}
+
+		List<SyncJob> shared = new ArrayList<>();
+		for (SyncJob job : jobs) {
+			Doc synced = job.getIndex().get(doc.name);
+			if (synced != null && (digests != null && synced.size == doc.size || patched(job, doc)))
+				update(job, doc);
+			else
+				shared.add(job);
+		}
+		if (shared.size() < 2) {
+			shared.forEach(job -> transfer(job, doc));
+			return;
+		}
+
+		Path source = Path.of(jobs.get(0).getSource() + doc.name);
+		if (Files.isDirectory(source)) {
+			shared.forEach(job -> save(job, doc));
+			return;
+		}
+
+		List<Path> targets = new ArrayList<>();
+		boolean[] updates = new boolean[shared.size()];
+		for (int i = 0; i < shared.size(); i++) {
+			SyncJob job = shared.get(i);
+			boolean update = job.getIndex().get(doc.name) != null;
+			updates[i] = update;
+			History.getLogger().log(Level.FINE, () -> job.label() + (update
+					? "Modification detected on '" + doc.name + "'. File updated" : "Change detected on '" + doc.name + "'. File synchronized"));
+			Path target = Path.of(job.getTarget() + doc.name);
+			target.toFile().getParentFile().mkdirs();
+			targets.add(target);
+		}
+
+		Throttle.get().operations(targets.size());
+		long start = System.nanoTime();
+		TeeCopier.Outcome[] outcomes;
+		try {
+			outcomes = tee.copy(source, targets, doc.date);
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to read '" + source + "': " + e.getMessage());
+			shared.forEach(job -> job.getMetrics().failed());
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+
+		for (int i = 0; i < outcomes.length; i++) {
+			SyncJob job = shared.get(i);
+			if (outcomes[i] == TeeCopier.Outcome.COPIED) {
+				job.getIndex().put(doc);
+				job.getMetrics().copied(doc, updates[i], nanos);
+			} else if (outcomes[i] == TeeCopier.Outcome.FAILED) {
+				job.getMetrics().failed();
+			}
+		}
+		for (int i = 0; i < outcomes.length; i++) {
+			SyncJob job = shared.get(i);
+			if (outcomes[i] == TeeCopier.Outcome.BEHIND) {
+				History.getLogger().log(Level.INFO, job.label() + "'" + doc.name + "' fell behind the other targets, copied on its own");
+				transfer(job, doc);
+			}
+		}
+	}
+
+	/**
+	 * Copies the given document to the target directory of the job on its own, or updates it if it is recorded in its index.
+	 *
+	 * @param job the job the document belongs to
+	 * @param doc the document to copy
+	 */
+	private void transfer(SyncJob job, Doc doc) {
+		if (job.getIndex().get(doc.name) == null)
+			save(job, doc);
+		else
+			update(job, doc);
+	}
+
+	/**
+	 * Checks whether the copy of a modified document in the target directory of the job would be patched or overwritten in place,
+	 * see {@link Doc#updateIn(String, String)}.
+	 *
+	 * @param job the job the document belongs to
+	 * @param doc the modified document
+	 * @return true if the target file is kept, false if it is replaced
+	 */
+	private static boolean patched(SyncJob job, Doc doc) {
+		Path target = Path.of(job.getTarget() + doc.name);
+		return Files.isRegularFile(target) && (History.getConfig().getBoolean("update.inplace")
+				|| DeltaCopier.accepts(Path.of(job.getSource() + doc.name), target, History.getConfig().getLong("delta.threshold", 0)));
+	}
+
+	/**
+	 * Deletes the given document from the target directory of the job and removes it from its index.
+	 *
+	 * @param job the job the document belongs to
+	 * @param doc the document to delete
+	 */
+	public void delete(SyncJob job, Doc doc) {
+		Throttle.get().operations(1);
+		History.getLogger().log(Level.FINE, () -> job.label() + "Deletion detected on '" + doc.name + "'. File deleted");
+		if (doc.deleteFrom(job.getTarget())) {
+			job.getIndex().remove(doc.name);
+			job.getMetrics().deleted();
+		} else {
+			job.getMetrics().failed();
+		}
+	}
+
+	/**
+	 * Updates the copy of the given modified document in the target directory of the job and records it in its index.<br/>
+	 * When digests are enabled and the size did not change, the content of both files is compared first:
+	 * if it did not change, only the date of the target file is updated.
+	 *
+	 * @param job the job the document belongs to
+	 * @param doc the document to update
+	 */
+	public void update(SyncJob job, Doc doc) {
+		String target = job.getTarget();
+		SnapshotIndex index = job.getIndex();
+		Doc synced = index.get(doc.name);
+		long hash = 0;
+		Throttle.get().operations(1);
+
+		if (digests != null && synced != null && synced.size == doc.size) {
+			Path file = Path.of(target + doc.name);
+			hash = digests.digest(Path.of(job.getSource() + doc.name));
+			long previous = index.getHash(doc.name);
+			if (previous == 0)
+				previous = digests.digest(file);
+
+			if (hash != 0 && hash == previous) {
+				try {
+					Files.setLastModifiedTime(file, FileTime.fromMillis(doc.date));
+					index.put(doc, hash);
+					History.getLogger().log(Level.FINE, () -> job.label() + "Date changed on '" + doc.name + "'. Content unchanged, date synchronized");
+					return;
+				} catch (IOException e) {
+					// The target file is gone, copy it again
+				}
+			}
+		}
+
+		History.getLogger().log(Level.FINE, () -> job.label() + "Modification detected on '" + doc.name + "'. File updated");
+		long start = System.nanoTime();
+		if (doc.updateIn(job.getSource(), target)) {
+			index.put(doc, hash);
+			job.getMetrics().copied(doc, true, System.nanoTime() - start);
+		} else {
+			job.getMetrics().failed();
+		}
+	}
+
+	/**
+	 * Submits a task to the given pool, waiting while too many tasks of the same job are pending.<br/>
+	 * The task is skipped if the process is stopped before it starts.
+	 *
+	 * @param pending the permits of the job
+	 * @param pool the pool running the task
+	 * @param task the task to run
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private static void submit(Semaphore pending, ExecutorService pool, Runnable task) throws InterruptedException {
+		submit(pending, pool, task, null);
+	}
+
+	/**
+	 * Submits a task to the given pool, and runs the given task once it is over or skipped.<br/>
+	 * The second task runs before the permit is given back, so it is over once {@link #await(Semaphore, int)} returns.
+	 *
+	 * @param pending the permits of the job
+	 * @param pool the pool running the task
+	 * @param task the task to run
+	 * @param done the task run once the first one is over or skipped, or null
+	 * @throws InterruptedException if the thread is interrupted while waiting, the second task is not run in that case
+	 */
+	private static void submit(Semaphore pending, ExecutorService pool, Runnable task, Runnable done) throws InterruptedException {
+		pending.acquire();
+		pool.execute(() -> {
+			try {
+				if (History.getProcessState())
+					task.run();
+			} catch (RuntimeException e) {
+				History.getLogger().log(Level.SEVERE, "Transfer failed: " + e);
+			} finally {
+				if (done != null)
+					done.run();
+				pending.release();
+			}
+		});
+	}
+
+	/**
+	 * Waits until every task submitted with the given permits is done.
+	 *
+	 * @param pending the permits of the job
+	 * @param capacity the number of permits
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private static void await(Semaphore pending, int capacity) throws InterruptedException {
+		pending.acquire(capacity);
+		pending.release(capacity);
+	}
+}
@@ -0,0 +1,388 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+
+/**
+ * Lists the content of a directory tree using several threads.<br/>
+ * Each subdirectory is listed by its own fork/join task and the results are concatenated when the tasks are joined,
+ * so no lock is needed. The name, size and date of every entry come from a single attribute read,
+ * and the relative name is cut from the path of the entry, so each entry only allocates its own name.<br/>
+ * A tree can also be walked lazily in {@link Doc#PATH_ORDER}, one directory at a time, see {@link #iterate(String, IgnoreMatcher)}.
+ * Such a walk can read the listing of the directories that did not change from a snapshot index,
+ * only reading the date of each directory, see {@link #iterate(String, IgnoreMatcher, SnapshotIndex, boolean)}.
+ */
+public class TreeWalker {
+
+	// Pool running the listing tasks
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a walker listing up to the given number of directories at the same time.
+	 *
+	 * @param parallelism the number of threads used to walk a tree
+	 */
+	public TreeWalker(int parallelism) {
+		this.pool = new ForkJoinPool(Math.max(1, parallelism));
+	}
+
+	/**
+	 * Returns the number of threads used to walk a tree.
+	 *
+	 * @return the degree of parallelism
+	 */
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Stops the threads of the walker.
+	 */
+	public void close() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Returns a list of all documents in the specified directory and its subdirectories.
+	 *
+	 * Ignored files are left out and ignored directories are not walked at all.
+	 *
+	 * @param root the path of the directory to walk
+	 * @param matcher the ignored files
+	 * @return a list of Doc objects whose names are relative to the root, with '/' separators
+	 */
+	public List<Doc> walk(String root, IgnoreMatcher matcher) {
+		Path dir = Path.of(root);
+		String path = dir.toString();
+		int rootLength = path.endsWith(File.separator) ? path.length() : path.length() + 1;
+		return pool.invoke(new ListTask(dir, rootLength, matcher));
+	}
+
+	/**
+	 * Returns the documents of the specified directory and its subdirectories, sorted in {@link Doc#PATH_ORDER}.<br/>
+	 * Directories are listed while the iterator advances, so only the directories being walked are held in memory.
+	 * The next subdirectories of the current directory are listed ahead on the threads of the walker.
+	 * Ignored files are left out and ignored directories are not walked at all.
+	 *
+	 * @param root the path of the directory to walk
+	 * @param matcher the ignored files
+	 * @return an iterator over Doc objects whose names are relative to the root, with '/' separators
+	 */
+	public Iterator<Doc> iterate(String root, IgnoreMatcher matcher) {
+		return iterate(root, matcher, null, false);
+	}
+
+	/**
+	 * Returns the documents of the specified directory and its subdirectories, sorted in {@link Doc#PATH_ORDER},
+	 * reading the listing of the unchanged directories from the given index.<br/>
+	 * The date of each directory is read first: if the index recorded this date for the directory,
+	 * and nothing changed under it in the index since, its files are not listed nor read again, see {@link SnapshotIndex#listing(String, long, List, List)}.
+	 * Every other directory is listed from the disk, and recorded in the index if it matches it.
+	 * A directory is still walked when its parent is read from the index, since its own changes do not change the date of its parent.
+	 * When the listings are not trusted, every directory is listed from the disk and only recorded.
+	 *
+	 * @param root the path of the directory to walk
+	 * @param matcher the ignored files
+	 * @param index the index whose listings are used and recorded, or null to list every directory from the disk
+	 * @param trusted true to read the listings recorded in the index, false to only record them
+	 * @return an iterator over Doc objects whose names are relative to the root, with '/' separators
+	 */
+	public Iterator<Doc> iterate(String root, IgnoreMatcher matcher, SnapshotIndex index, boolean trusted) {
+		Path dir = Path.of(root);
+		String path = dir.toString();
+		int rootLength = path.endsWith(File.separator) ? path.length() : path.length() + 1;
+		return new SortedWalk(dir, rootLength, matcher, index, trusted);
+	}
+
+	/**
+	 * Lists one directory, sorted by name.
+	 *
+	 * @param dir the directory to list
+	 * @param rootLength the length of the path of the root directory, separator included
+	 * @param matcher the ignored files
+	 * @param index the index whose listings are used and recorded, or null
+	 * @param trusted true to read the listing from the index, false to only record it
+	 * @return the entries of the directory that are not ignored
+	 */
+	private static Entry[] list(Path dir, int rootLength, IgnoreMatcher matcher, SnapshotIndex index, boolean trusted) {
+		List<Entry> entries = new ArrayList<>();
+		String relative = "";
+		long date = 0;
+
+		if (index != null) {
+			String path = dir.toString();
+			relative = path.length() < rootLength ? "" : path.substring(rootLength);
+			if (File.separatorChar != '/')
+				relative = relative.replace(File.separatorChar, '/');
+
+			try {
+				date = Files.getLastModifiedTime(dir).toMillis();
+			} catch (IOException e) {
+				// Deleted since its parent was listed
+				return new Entry[0];
+			}
+
+			List<Doc> files = new ArrayList<>();
+			List<String> folders = new ArrayList<>();
+			if (trusted && index.listing(relative, date, files, folders)) {
+				for (Doc doc : files) {
+					entries.add(new Entry(doc.name, null, doc));
+				}
+				for (String folder : folders) {
+					entries.add(new Entry(folder, dir.resolve(folder.substring(folder.lastIndexOf('/') + 1)), null));
+				}
+				return sort(entries);
+			}
+		}
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path entry : stream) {
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// The entry was deleted while listing, or it is a broken link
+					continue;
+				}
+
+				String name = entry.toString().substring(rootLength);
+				if (File.separatorChar != '/')
+					name = name.replace(File.separatorChar, '/');
+
+				if (matcher.matches(name, attrs.isDirectory()))
+					continue;
+
+				if (attrs.isDirectory())
+					entries.add(new Entry(name, entry, null));
+				else
+					entries.add(new Entry(name, null, new Doc(name, attrs.lastModifiedTime().toMillis(), attrs.size())));
+			}
+		} catch (IOException e) {
+			History.getLogger().log(Level.WARNING, "Unable to list directory '" + dir + "': " + e.getMessage());
+			return sort(entries);
+		}
+
+		if (index != null) {
+			List<Doc> files = new ArrayList<>();
+			List<String> folders = new ArrayList<>();
+			for (Entry entry : entries) {
+				if (entry.doc != null)
+					files.add(entry.doc);
+				else
+					folders.add(entry.name);
+			}
+			index.listed(relative, date, files, folders);
+		}
+		return sort(entries);
+	}
+
+	/**
+	 * Sorts the entries of a directory by name.
+	 *
+	 * @param entries the entries
+	 * @return the sorted entries
+	 */
+	private static Entry[] sort(List<Entry> entries) {
+		Entry[] sorted = entries.toArray(new Entry[0]);
+		Arrays.sort(sorted, (a, b) -> Doc.PATH_ORDER.compare(a.name, b.name));
+		return sorted;
+	}
+
+	/**
+	 * Entry of a listed directory: a file, or a subdirectory and its listing once it is started.
+	 */
+	private static class Entry {
+
+		// Relative name of the entry
+		final String name;
+
+		// Path of the subdirectory, or null for a file
+		final Path dir;
+
+		// Document of the file, or null for a subdirectory
+		final Doc doc;
+
+		// Listing of the subdirectory, or null if it is not started
+		ForkJoinTask<Entry[]> listing;
+
+		Entry(String name, Path dir, Doc doc) {
+			this.name = name;
+			this.dir = dir;
+			this.doc = doc;
+		}
+	}
+
+	/**
+	 * Depth-first walk of a tree in {@link Doc#PATH_ORDER}.<br/>
+	 * The walk keeps the listing of each directory between the root and the current one.
+	 */
+	private class SortedWalk implements Iterator<Doc> {
+
+		// Subdirectories listed ahead of the walk in the current directory
+		private final int ahead = 2 * pool.getParallelism();
+
+		// Length of the root path, ignored files, index of the listings, or null, and whether they are read
+		private final int rootLength;
+		private final IgnoreMatcher matcher;
+		private final SnapshotIndex index;
+		private final boolean trusted;
+
+		// Listings of the directories being walked, the current one first, and the position in each of them
+		private final Deque<Entry[]> listings = new ArrayDeque<>();
+		private final Deque<int[]> positions = new ArrayDeque<>();
+
+		// Next document, or null if it is not found yet
+		private Doc next;
+
+		SortedWalk(Path root, int rootLength, IgnoreMatcher matcher, SnapshotIndex index, boolean trusted) {
+			this.rootLength = rootLength;
+			this.matcher = matcher;
+			this.index = index;
+			this.trusted = trusted;
+			enter(list(root, rootLength, matcher, index, trusted));
+		}
+
+		/**
+		 * Starts walking a directory.
+		 *
+		 * @param entries the listing of the directory
+		 */
+		private void enter(Entry[] entries) {
+			listings.push(entries);
+			positions.push(new int[] { 0 });
+			prefetch(entries, 0);
+		}
+
+		/**
+		 * Starts listing the next subdirectories of a directory on the threads of the walker.
+		 *
+		 * @param entries the listing of the directory
+		 * @param from the position of the walk in the directory
+		 */
+		private void prefetch(Entry[] entries, int from) {
+			for (int i = from, started = 0; i < entries.length && started < ahead; i++) {
+				Entry entry = entries[i];
+				if (entry.dir == null)
+					continue;
+				if (entry.listing == null)
+					entry.listing = pool.submit(() -> list(entry.dir, rootLength, matcher, index, trusted));
+				started++;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && !listings.isEmpty()) {
+				Entry[] entries = listings.peek();
+				int[] position = positions.peek();
+				if (position[0] == entries.length) {
+					listings.pop();
+					positions.pop();
+					continue;
+				}
+
+				Entry entry = entries[position[0]++];
+				entries[position[0] - 1] = null;
+				if (entry.dir == null) {
+					next = entry.doc;
+				} else {
+					prefetch(entries, position[0]);
+					enter(entry.listing != null ? entry.listing.join() : list(entry.dir, rootLength, matcher, index, trusted));
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Doc next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Doc doc = next;
+			next = null;
+			return doc;
+		}
+	}
+
+	/**
+	 * Task listing one directory and forking a new task for each of its subdirectories.
+	 */
+	private static class ListTask extends RecursiveTask<List<Doc>> {
+
+		private static final long serialVersionUID = 1L;
+
+		// Directory to list and length of the root path, separator included
+		private final Path dir;
+		private final int rootLength;
+
+		// Ignored files
+		private final IgnoreMatcher matcher;
+
+		/**
+		 * Creates a task listing the given directory.
+		 *
+		 * @param dir the directory to list
+		 * @param rootLength the length of the path of the root directory, separator included
+		 * @param matcher the ignored files
+		 */
+		ListTask(Path dir, int rootLength, IgnoreMatcher matcher) {
+			this.dir = dir;
+			this.rootLength = rootLength;
+			this.matcher = matcher;
+		}
+
+		@Override
+		protected List<Doc> compute() {
+			List<Doc> docs = new ArrayList<>();
+			List<ListTask> subtasks = new ArrayList<>();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path entry : stream) {
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+					} catch (IOException e) {
+						// The entry was deleted while listing, or it is a broken link
+						continue;
+					}
+
+					String name = entry.toString().substring(rootLength);
+					if (File.separatorChar != '/')
+						name = name.replace(File.separatorChar, '/');
+
+					// The parent directory was checked already, only the entry itself needs to be
+					if (matcher.matches(name, attrs.isDirectory()))
+						continue;
+
+					if (attrs.isDirectory()) {
+						ListTask task = new ListTask(entry, rootLength, matcher);
+						task.fork();
+						subtasks.add(task);
+					} else {
+						docs.add(new Doc(name, attrs.lastModifiedTime().toMillis(), attrs.size()));
+					}
+				}
+			} catch (IOException e) {
+				History.getLogger().log(Level.WARNING, "Unable to list directory '" + dir + "': " + e.getMessage());
+			}
+
+			for (ListTask task : subtasks) {
+				docs.addAll(task.join());
+			}
+
+			return docs;
+		}
+	}
+}
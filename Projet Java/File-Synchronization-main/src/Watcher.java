@@ -0,0 +1,500 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Watches the source directory of a job and its subdirectories for changes and replicates them to the target directory.<br/>
+ * Events are read from a {@link WatchService}, so an idle source costs nothing between two changes.
+ * A full synchronization is only performed when the service reports an overflow.
+ * Changed paths go through a {@link Debouncer}, so a file being written is replicated once it is complete.
+ * The copies and deletions run on the {@link TransferScheduler} within the limits of the job, and the watcher goes on
+ * reading events meanwhile: a path is only replicated again once its last transfer is over.
+ * A job with several targets replicates every change to each of them, see {@link SyncJob#getReplicas()}.<br/>
+ * When the job runs in both directions, both directories are watched and every changed path is handed to its {@link Reconciler}.
+ */
+public class Watcher implements Closeable {
+
+	// Job whose source directory is watched
+	private final SyncJob job;
+
+	// Target directory, with '/' separators and a trailing '/'
+	private final String target;
+
+	// Root of the watched tree
+	private final Path root;
+
+	// Ignored files of the job
+	private final IgnoreMatcher matcher;
+
+	// Reconciler of the job, or null if it only runs from the source to the target
+	private final Reconciler reconciler;
+
+	// Service delivering the file system events and the directory registered for each key
+	private final WatchService service;
+	private final Map<WatchKey, Path> keys = new HashMap<>();
+
+	// Paths changed and not replicated yet
+	private final Debouncer changed;
+
+	// Transfers of each target of the job, or null if it runs in both directions
+	private final List<TransferScheduler.Batch> batches;
+
+	// Relative paths whose transfers are running, updated by the transfer threads
+	private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+	// True while transfers may have recorded results not written to the indexes yet
+	private boolean unflushed = false;
+
+	/**
+	 * Creates a watcher on a directory of the given job and registers its whole tree.
+	 *
+	 * @param job the job whose changes are replicated
+	 * @param dir the directory to watch, the source directory or, if the job runs in both directions, the target directory
+	 * @throws IOException if the watch service cannot be created or the tree cannot be registered
+	 */
+	public Watcher(SyncJob job, String dir) throws IOException {
+		this.job = job;
+		this.target = job.getTarget();
+		this.matcher = job.getMatcher();
+		this.reconciler = job.getReconciler();
+		this.root = Path.of(dir).toAbsolutePath();
+		this.changed = new Debouncer(job.getQuietPeriod(), this::isReplicated);
+		this.service = FileSystems.getDefault().newWatchService();
+		if (reconciler == null) {
+			batches = new ArrayList<>();
+			for (SyncJob replica : job.getReplicas()) {
+				batches.add(job.getEngine().getTransfers().open(replica));
+			}
+		} else {
+			batches = null;
+		}
+
+		try {
+			register(root);
+		} catch (IOException e) {
+			service.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates a watcher on a directory of the given job.
+	 * If the file system does not support watching, the error is logged and null is returned.
+	 *
+	 * @param job the job whose changes are replicated
+	 * @param dir the directory to watch
+	 * @return the new watcher, or null if the directory cannot be watched
+	 */
+	public static Watcher open(SyncJob job, String dir) {
+		try {
+			return new Watcher(job, dir);
+		} catch (IOException | UnsupportedOperationException e) {
+			History.getLogger().log(Level.WARNING, job.label() + "Unable to watch '" + dir + "', falling back to polling: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Registers the given directory and all of its subdirectories with the watch service.
+	 *
+	 * @param dir the directory to register
+	 * @throws IOException if a directory cannot be registered
+	 */
+	private void register(Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				if (!d.equals(root) && matcher.isIgnored(relative(d), true))
+					return FileVisitResult.SKIP_SUBTREE;
+
+				WatchKey key = d.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				keys.put(key, d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Reads the pending file system events and replicates up to the given number of changed paths to the target directory.<br/>
+	 * Every available event is drained before anything is copied, so a burst of events on the same file only leads to one copy,
+	 * and files still being written are held until they are settled, see {@link Debouncer}.
+	 * The paths left over are replicated by the next calls. The method never waits for new events,
+	 * and only waits for the transfers when the job has too many of them running.
+	 *
+	 * @param budget the maximum number of paths to replicate
+	 * @throws InterruptedException if the thread is interrupted while waiting for the transfers or a full synchronization
+	 */
+	public void processEvents(int budget) throws InterruptedException {
+		WatchKey key = service.poll();
+		boolean overflow = false;
+
+		while (key != null) {
+			Path dir = keys.get(key);
+
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					overflow = true;
+				} else if (dir != null) {
+					changed.add(dir.resolve((Path) event.context()));
+				}
+			}
+
+			// The directory is no longer accessible, stop tracking it
+			if (!key.reset())
+				keys.remove(key);
+
+			key = service.poll();
+		}
+
+		if (overflow) {
+			// Some events were lost, the only safe option is a full rescan
+			History.getLogger().log(Level.WARNING, job.label() + "Too many events on '" + root + "', full rescan");
+			changed.clear();
+			job.rescan();
+			return;
+		}
+
+		List<Path> ready = changed.ready(budget);
+		if (reconciler == null)
+			moves(ready);
+		for (Path path : ready) {
+			if (isBusy(relative(path)))
+				// Replicated once the running transfer is over
+				changed.add(path);
+			else
+				apply(path);
+		}
+
+		// The transfers record their result in the index as they end, it is written until the last one is over
+		if (!ready.isEmpty() || unflushed) {
+			boolean running = !inFlight.isEmpty();
+			job.getReplicas().forEach(replica -> {
+				replica.getIndex().flush();
+				replica.getIndex().compactIfOutdated();
+			});
+			unflushed = running;
+		}
+	}
+
+	/**
+	 * Moves in the target directory the files and folders moved in the source directory among the given paths, see {@link MoveDetector}.<br/>
+	 * A move is reported as the deletion of the old path and the creation of the new one: the files under the deleted paths
+	 * are compared to the files under the created ones. The paths are then replicated as usual, and find their target up to date.
+	 *
+	 * @param ready the source paths about to be replicated
+	 * @throws InterruptedException if the thread is interrupted while waiting for the transfers
+	 */
+	private void moves(List<Path> ready) throws InterruptedException {
+		List<Doc> created = null;
+		for (SyncJob replica : job.getReplicas()) {
+			SnapshotIndex index = replica.getIndex();
+			List<Doc> deleted = new ArrayList<>();
+			for (Path path : ready) {
+				if (Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+					continue;
+
+				String name = relative(path);
+				Doc doc = index.get(name);
+				if (doc != null) {
+					deleted.add(doc);
+					continue;
+				}
+				for (String child : index.children(name)) {
+					deleted.add(index.get(child));
+				}
+			}
+			if (deleted.isEmpty())
+				continue;
+
+			// The moves rename paths of the target, the transfers writing them must be over
+			await();
+			if (created == null)
+				created = created(ready);
+			List<Doc> added = new ArrayList<>();
+			for (Doc doc : created) {
+				if (index.get(doc.name) == null)
+					added.add(doc);
+			}
+			job.getEngine().getTransfers().move(replica, added, deleted);
+		}
+	}
+
+	/**
+	 * Lists the files found under the given source paths, ignored files left out.
+	 *
+	 * @param ready the source paths about to be replicated
+	 * @return the files, relative to the source directory
+	 */
+	private List<Doc> created(List<Path> ready) {
+		List<Doc> created = new ArrayList<>();
+		for (Path path : ready) {
+			try {
+				Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+						return matcher.matches(relative(d), true) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+						Doc doc = new Doc(relative(f), attrs.lastModifiedTime().toMillis(), attrs.size());
+						if (attrs.isRegularFile() && !doc.isIgnored(matcher))
+							created.add(doc);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				// Deleted meanwhile, or not readable: replicated as usual
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Replicates the current state of the given source path to the target directory.<br/>
+	 * The state is read from the disk rather than from the event kind, since the file may have changed again since.
+	 *
+	 * @param path the source path that changed
+	 * @throws InterruptedException if the thread is interrupted while waiting for the transfers
+	 */
+	private void apply(Path path) throws InterruptedException {
+		String name = relative(path);
+		File file = path.toFile();
+
+		if (reconciler != null) {
+			reconcile(path, name, file);
+		} else if (file.isDirectory()) {
+			if (matcher.isIgnored(name, true))
+				return;
+
+			try {
+				// Register the new directory and queue the files created before it was registered
+				register(path);
+				Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+						return !d.equals(path) && matcher.matches(relative(d), true) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+						changed.add(f);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				History.getLogger().log(Level.SEVERE, job.label() + "Unable to watch directory '" + name + "': " + e.getMessage());
+			}
+		} else if (file.exists()) {
+			Doc doc = new Doc(name, file.lastModified(), file.length());
+			if (doc.isIgnored(matcher))
+				return;
+
+			List<SyncJob> outdated = new ArrayList<>();
+			for (SyncJob replica : job.getReplicas()) {
+				// Events are also sent when only the attributes change, the content is left alone in that case
+				Doc synced = replica.getIndex().get(name);
+				if (synced == null || synced.date != doc.date || synced.size != doc.size)
+					outdated.add(replica);
+			}
+			if (!outdated.isEmpty()) {
+				Runnable done = track(name, 1);
+				try {
+					batches.get(0).copy(doc, outdated, done);
+				} catch (InterruptedException e) {
+					inFlight.remove(name);
+					throw e;
+				}
+			}
+		} else {
+			Doc doc = new Doc(name, 0);
+			if (doc.isIgnored(matcher))
+				return;
+
+			List<SyncJob> replicas = job.getReplicas();
+			List<Integer> present = new ArrayList<>();
+			for (int i = 0; i < replicas.size(); i++) {
+				if (new File(replicas.get(i).getTarget() + name).exists())
+					present.add(i);
+			}
+			if (present.isEmpty())
+				return;
+
+			Runnable done = track(name, present.size());
+			try {
+				for (int i : present) {
+					batches.get(i).delete(doc, done);
+				}
+			} catch (InterruptedException e) {
+				inFlight.remove(name);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Records that transfers of a path are about to run.
+	 *
+	 * @param name the relative path
+	 * @param transfers the number of transfers of the path
+	 * @return the task to run once each transfer is over, which forgets the path after the last one
+	 */
+	private Runnable track(String name, int transfers) {
+		inFlight.add(name);
+		AtomicInteger left = new AtomicInteger(transfers);
+		return () -> {
+			if (left.decrementAndGet() == 0)
+				inFlight.remove(name);
+		};
+	}
+
+	/**
+	 * Checks whether a transfer is running on a path, on one of its parent folders, or on a file inside it.
+	 *
+	 * @param name the relative path
+	 * @return true if the path should wait for the transfer, false otherwise
+	 */
+	private boolean isBusy(String name) {
+		for (String running : inFlight) {
+			if (running.equals(name) || running.startsWith(name + "/") || name.startsWith(running + "/"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a path may have a copy to delete: it is recorded in the index of a replica, or a transfer is running on it.
+	 *
+	 * @param path the path inside the watched directory
+	 * @return true if the deletion of the path must be replicated, false if nothing was replicated
+	 */
+	private boolean isReplicated(Path path) {
+		String name = relative(path);
+		if (isBusy(name))
+			return true;
+		for (SyncJob replica : job.getReplicas()) {
+			SnapshotIndex index = replica.getIndex();
+			if (index.get(name) != null || !index.children(name).isEmpty())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Waits until every copy and deletion submitted by this watcher is over.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void await() throws InterruptedException {
+		if (batches == null)
+			return;
+		for (TransferScheduler.Batch batch : batches) {
+			batch.await();
+		}
+	}
+
+	/**
+	 * Reconciles the given path of a job running in both directions.<br/>
+	 * A new directory is created on the other side and every file found in it is queued to be reconciled.
+	 *
+	 * @param path the path that changed
+	 * @param name the path relative to the watched directory
+	 * @param file the file of the path
+	 */
+	private void reconcile(Path path, String name, File file) {
+		if (!file.isDirectory()) {
+			reconciler.reconcileTree(name);
+			return;
+		}
+
+		if (matcher.isIgnored(name, true))
+			return;
+
+		try {
+			register(path);
+			boolean inTarget = root.equals(Path.of(target).toAbsolutePath());
+			new File((inTarget ? job.getSource() : target) + name).mkdirs();
+			Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+					return !d.equals(path) && matcher.matches(relative(d), true) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+					changed.add(f);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, job.label() + "Unable to watch directory '" + name + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Replicates the given path once it is settled, as if it had been reported by the watch service.
+	 *
+	 * @param path the path inside the watched directory
+	 */
+	public void track(Path path) {
+		changed.add(path.toAbsolutePath());
+	}
+
+	/**
+	 * Returns the number of changed paths not replicated yet, or being replicated.
+	 *
+	 * @return the number of paths
+	 */
+	public int pending() {
+		return changed.size() + inFlight.size();
+	}
+
+	/**
+	 * Returns the path of the given file relative to the source directory, with '/' separators.
+	 *
+	 * @param path the file inside the source directory
+	 * @return the relative path
+	 */
+	private String relative(Path path) {
+		return root.relativize(path).toString().replace('\\', '/');
+	}
+
+	/**
+	 * Stops watching the source directory, once the running transfers are over.
+	 */
+	@Override
+	public void close() {
+		try {
+			await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			service.close();
+		} catch (IOException e) {
+			History.getLogger().log(Level.SEVERE, "Unable to close the watch service: " + e.getMessage());
+		}
+		keys.clear();
+		changed.clear();
+	}
+}
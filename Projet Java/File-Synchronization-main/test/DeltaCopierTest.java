@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trips of {@link DeltaCopier}: the target updated in place must end with the exact content of the source,
+ * whatever was inserted, deleted or shifted, and the blocks left in place must not be written again.
+ * Blocks moved within the target count as written.
+ */
+class DeltaCopierTest {
+
+	// Size of the files, 64 blocks of the minimum block size
+	private static final int SIZE = 1024 * 1024;
+
+	// Block size of the files
+	private static final int BLOCK = DeltaCopier.blockSize(SIZE);
+
+	// Date given to the updated targets
+	private static final long DATE = 1_600_000_000_000L;
+
+	@TempDir
+	Path dir;
+
+	private final Random random = new Random(42);
+
+	// Bytes reused from the target by the last round trip
+	private long saved;
+
+	@Test
+	void identical() throws IOException {
+		byte[] data = bytes(SIZE);
+		long written = roundTrip(data, data);
+		assertEquals(0, written);
+		assertEquals(SIZE, saved);
+	}
+
+	@Test
+	void insertInMiddle() throws IOException {
+		byte[] old = bytes(SIZE);
+		byte[] data = splice(old, SIZE / 2, 0, bytes(1000));
+		roundTrip(old, data);
+		assertTrue(saved >= SIZE / 2 - BLOCK, "saved " + saved);
+	}
+
+	@Test
+	void deleteInMiddle() throws IOException {
+		byte[] old = bytes(SIZE);
+		byte[] data = splice(old, SIZE / 3, 5000, new byte[0]);
+		long written = roundTrip(old, data);
+		assertTrue(saved >= SIZE / 3 - BLOCK, "saved " + saved);
+		assertEquals(data.length, written + saved);
+	}
+
+	@Test
+	void shiftForward() throws IOException {
+		// Every block of the target would move to a later offset, over bytes already written: nothing is reused
+		byte[] old = bytes(SIZE);
+		byte[] data = splice(old, 0, 0, bytes(777));
+		long written = roundTrip(old, data);
+		assertEquals(data.length, written);
+	}
+
+	@Test
+	void shiftBackward() throws IOException {
+		byte[] old = bytes(SIZE);
+		byte[] data = splice(old, 0, 777, new byte[0]);
+		long written = roundTrip(old, data);
+		assertEquals(data.length, written + saved);
+	}
+
+	@Test
+	void blocksSwapped() throws IOException {
+		// The first block goes to the end: it is only reused if it was not overwritten first
+		byte[] old = bytes(SIZE);
+		byte[] data = new byte[SIZE];
+		System.arraycopy(old, BLOCK, data, 0, SIZE - BLOCK);
+		System.arraycopy(old, 0, data, SIZE - BLOCK, BLOCK);
+		roundTrip(old, data);
+	}
+
+	@Test
+	void repeatedBlocks() throws IOException {
+		byte[] block = bytes(BLOCK);
+		byte[] old = new byte[SIZE];
+		for (int i = 0; i < SIZE; i += BLOCK) {
+			System.arraycopy(block, 0, old, i, BLOCK);
+		}
+		byte[] data = splice(old, 3 * BLOCK + 5, 0, bytes(10));
+		roundTrip(old, data);
+	}
+
+	@Test
+	void appendAndTruncate() throws IOException {
+		byte[] old = bytes(SIZE);
+		roundTrip(old, splice(old, SIZE, 0, bytes(3 * BLOCK + 11)));
+		roundTrip(old, Arrays.copyOf(old, SIZE / 2 + 3));
+	}
+
+	@Test
+	void unrelated() throws IOException {
+		byte[] data = bytes(SIZE + 123);
+		long written = roundTrip(bytes(SIZE), data);
+		assertEquals(data.length, written);
+	}
+
+	/**
+	 * Writes the target and the source, updates the target from the source and checks its content and date.
+	 *
+	 * @return the number of bytes written by the update, the bytes reused being left in {@link #saved}
+	 */
+	private long roundTrip(byte[] old, byte[] data) throws IOException {
+		Path source = Files.write(dir.resolve("source"), data);
+		Path target = Files.write(dir.resolve("target"), old);
+		long before = DeltaCopier.getBytesSaved();
+		long written = DeltaCopier.copy(source, target, DATE);
+		saved = DeltaCopier.getBytesSaved() - before;
+		assertArrayEquals(data, Files.readAllBytes(target));
+		assertEquals(DATE, Files.getLastModifiedTime(target).toMillis());
+		return written;
+	}
+
+	/**
+	 * Returns random bytes.
+	 */
+	private byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Returns a copy of an array with a range replaced by other bytes.
+	 */
+	private static byte[] splice(byte[] data, int at, int removed, byte[] inserted) {
+		byte[] result = new byte[data.length - removed + inserted.length];
+		System.arraycopy(data, 0, result, 0, at);
+		System.arraycopy(inserted, 0, result, at, inserted.length);
+		System.arraycopy(data, at + removed, result, at + inserted.length, data.length - at - removed);
+		return result;
+	}
+}
@@ -0,0 +1,59 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * Table tests of {@link IgnoreMatcher}: each row gives the rules, separated by spaces, a path, whether it is a directory,
+ * and whether it is expected to be ignored, by itself or through one of its parent directories.
+ */
+class IgnoreMatcherTest {
+
+	@ParameterizedTest
+	@CsvSource(delimiter = '|', value = {
+			// Literal names match at any depth, literal paths only from the root
+			"node_modules           | node_modules            | true  | true",
+			"node_modules           | a/b/node_modules/x.js   | false | true",
+			"node_modules           | node_modules_old/x.js   | false | false",
+			"/out                   | out/x                   | false | true",
+			"/out                   | a/out/x                 | false | false",
+			"a/out                  | a/out                   | true  | true",
+			"a/out                  | b/a/out                 | true  | false",
+			// Suffixes and other wildcards
+			"*.tmp                  | a/b/c.tmp               | false | true",
+			"*.tmp                  | a/b/c.tmpx              | false | false",
+			"*.tmp                  | x.tmp/y                 | false | true",
+			"file?.txt              | dir/file1.txt           | false | true",
+			"file?.txt              | dir/file12.txt          | false | false",
+			"file[0-9].txt          | file7.txt               | false | true",
+			"file[0-9].txt          | filex.txt               | false | false",
+			"**/build               | a/b/build/c             | false | true",
+			"doc/**/*.pdf           | doc/a/b/c.pdf           | false | true",
+			"doc/*.pdf              | doc/a/c.pdf             | false | false",
+			// A trailing slash only matches directories, and then their whole content
+			"logs/                  | logs                    | false | false",
+			"logs/                  | logs                    | true  | true",
+			"logs/                  | a/logs/today.log        | false | true",
+			"*.d/                   | x.d                     | false | false",
+			"*.d/                   | x.d/y                   | false | true",
+			// The last matching rule wins, whatever the kind of rule
+			"*.log !keep.log        | a/keep.log              | false | false",
+			"*.log !keep.log        | a/other.log             | false | true",
+			"!keep.log *.log        | a/keep.log              | false | true",
+			"*.log !a/*.log         | a/x.log                 | false | false",
+			"*.log !a/*.log         | b/x.log                 | false | true",
+			"cache !cache cache     | cache                   | true  | true",
+			"secret* !secret.pub    | secret.pub              | false | false",
+			"secret* !secret.pub    | secret.key              | false | true",
+			// A file is not included again below an ignored directory
+			"build/ !build/keep     | build/keep              | false | true",
+			// Comments and blank rules are skipped
+			"#x                     | #x                      | false | false",
+	})
+	void isIgnored(String rules, String path, boolean directory, boolean expected) {
+		IgnoreMatcher matcher = new IgnoreMatcher(Arrays.asList(rules.trim().split("\\s+")));
+		assertEquals(expected, matcher.isIgnored(path, directory), rules + " on " + path);
+	}
+}
@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * Table tests of {@link MergeScan}: each row lists the source and target documents, written "name:date[:size]"
+ * and separated by spaces, and the differences expected, written "name=CHANGE" in {@link Doc#PATH_ORDER}.
+ */
+class MergeScanTest {
+
+	@ParameterizedTest
+	@CsvSource(delimiter = '|', value = {
+			// Empty sides
+			"|                  |",
+			"a:1                |                  | a=ADDED",
+			"                   | a:1              | a=DELETED",
+			// Same path, compared on date and size
+			"a:1:10             | a:1:10           | a=UNCHANGED",
+			"a:2:10             | a:1:10           | a=MODIFIED",
+			"a:1:11             | a:1:10           | a=MODIFIED",
+			"a:1                | a:1:10           | a=UNCHANGED",
+			// Interleaved paths
+			"a:1 c:1 e:1        | b:1 c:1 d:1      | a=ADDED b=DELETED c=UNCHANGED d=DELETED e=ADDED",
+			// The content of a folder comes before the siblings sorting after its name
+			"a/b:1 a-b:1 a.b:1  | a/b:1 a.b:2      | a/b=UNCHANGED a-b=ADDED a.b=MODIFIED",
+			"x/y/z:1 x/z:1 xy:1 | x/y:1 x/z:1      | x/y=DELETED x/y/z=ADDED x/z=UNCHANGED xy=ADDED",
+			// Ignored files are never reported
+			"a.tmp:1 b:1        | .DS_Store:1 b:2  | b=MODIFIED",
+			"build/x:1 c:1      | build/y:1        | c=ADDED",
+	})
+	void singleTarget(String source, String target, String expected) {
+		MergeScan scan = new MergeScan(docs(source).iterator(), docs(target).iterator(), matcher());
+		List<String> changes = new ArrayList<>();
+		for (MergeScan.Change change = scan.next(); change != null; change = scan.next()) {
+			Doc doc = scan.getSource() != null ? scan.getSource() : scan.getTarget();
+			changes.add(doc.name + "=" + change);
+		}
+		assertEquals(expected == null ? "" : expected, String.join(" ", changes));
+	}
+
+	@Test
+	void severalTargets() {
+		List<Doc> source = docs("a:1 b:1 d:1");
+		List<Doc> first = docs("a:1 c:1 d:2");
+		List<Doc> second = docs("b:1 d:1 e:1");
+		MergeScan scan = new MergeScan(source.iterator(), List.of(first.iterator(), second.iterator()), matcher());
+
+		List<String> rows = new ArrayList<>();
+		while (scan.advance()) {
+			Doc doc = scan.getSource();
+			for (int i = 0; doc == null; i++) {
+				doc = scan.getTarget(i);
+			}
+			rows.add(doc.name + "=" + scan.getChange(0) + "," + scan.getChange(1));
+		}
+		assertEquals(List.of("a=UNCHANGED,ADDED", "b=ADDED,UNCHANGED", "c=DELETED,null", "d=MODIFIED,UNCHANGED", "e=null,DELETED"), rows);
+		assertEquals(5, scan.getChanges());
+		assertEquals(9, scan.getScanned());
+	}
+
+	/**
+	 * Returns the rules used by every test.
+	 */
+	private static IgnoreMatcher matcher() {
+		return new IgnoreMatcher(List.of("*.tmp", ".DS_Store", "build/"));
+	}
+
+	/**
+	 * Parses documents written "name:date[:size]", separated by spaces, and sorts them in {@link Doc#PATH_ORDER}.
+	 */
+	private static List<Doc> docs(String text) {
+		List<Doc> docs = new ArrayList<>();
+		if (text == null)
+			return docs;
+		for (String entry : text.trim().split("\\s+")) {
+			String[] parts = entry.split(":");
+			docs.add(new Doc(parts[0], Long.parseLong(parts[1]), parts.length > 2 ? Long.parseLong(parts[2]) : -1));
+		}
+		docs.sort((a, b) -> Doc.PATH_ORDER.compare(a.name, b.name));
+		return docs;
+	}
+}